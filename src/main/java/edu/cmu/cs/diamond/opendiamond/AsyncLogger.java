@@ -0,0 +1,323 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A LoggingFramework which passes events to another LoggingFramework on a
+ * background thread.
+ * <p>
+ * Producers append events to a bounded lock-free ring buffer.  A writer
+ * thread drains the buffer in batches and flushes the underlying logger
+ * after each batch.  When the buffer is full, results are handled
+ * according to the
+ * <code>edu.cmu.cs.diamond.opendiamond.loggingframework.overflow</code>
+ * property: <code>block</code> (the default) waits for space,
+ * <code>drop</code> discards the result, and <code>sample</code> keeps one
+ * of every <code>loggingframework.sampleinterval</code> overflowing
+ * results and discards the rest.  Other events always wait for space.
+ * Discarded results are counted in the log.
+ */
+final class AsyncLogger extends LoggingFramework {
+    enum OverflowPolicy {
+        BLOCK, DROP, SAMPLE
+    }
+
+    private interface Event {
+        void run() throws IOException;
+    }
+
+    private static final String PROPERTY_PREFIX =
+            "edu.cmu.cs.diamond.opendiamond.loggingframework.";
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final int DEFAULT_SAMPLE_INTERVAL = 16;
+
+    private static final int BATCH_SIZE = 256;
+
+    // how long a blocked producer waits before checking again
+    private static final long WAIT_NANOS = 10000;
+
+    private final LoggingFramework delegate;
+
+    private final OverflowPolicy policy;
+
+    private final int sampleInterval;
+
+    private final AtomicReferenceArray<Event> ring;
+
+    private final int mask;
+
+    // next slot to be claimed by a producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // next slot to be consumed by the writer; advanced only once the
+    // event in the slot has been written, so drain() waits for it
+    private volatile long head;
+
+    private final AtomicLong overflows = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean stopped;
+
+    // set while the writer is parked waiting for events
+    private volatile boolean idle;
+
+    private final Thread writer;
+
+    AsyncLogger(LoggingFramework delegate) {
+        this(delegate, Integer.getInteger(PROPERTY_PREFIX + "buffersize",
+                DEFAULT_BUFFER_SIZE), OverflowPolicy.valueOf(
+                System.getProperty(PROPERTY_PREFIX + "overflow", "block")
+                        .toUpperCase()), Integer.getInteger(
+                PROPERTY_PREFIX + "sampleinterval",
+                DEFAULT_SAMPLE_INTERVAL));
+    }
+
+    AsyncLogger(LoggingFramework delegate, int bufferSize,
+            OverflowPolicy policy, int sampleInterval) {
+        if (bufferSize < 1 || sampleInterval < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.delegate = delegate;
+        this.policy = policy;
+        this.sampleInterval = sampleInterval;
+
+        int capacity = Integer.highestOneBit(bufferSize);
+        if (capacity < bufferSize) {
+            capacity <<= 1;
+        }
+        ring = new AtomicReferenceArray<Event>(capacity);
+        mask = capacity - 1;
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "logging-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the number of results discarded because the buffer was full.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private boolean offer(Event e) {
+        while (true) {
+            long t = tail.get();
+            if (t - head >= ring.length()) {
+                return false;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                ring.lazySet((int) (t & mask), e);
+                wakeWriter();
+                return true;
+            }
+        }
+    }
+
+    private void wakeWriter() {
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void put(Event e, boolean droppable) {
+        if (stopped || offer(e)) {
+            return;
+        }
+        if (droppable) {
+            switch (policy) {
+            case DROP:
+                dropped.incrementAndGet();
+                return;
+            case SAMPLE:
+                if (overflows.getAndIncrement() % sampleInterval != 0) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                break;
+            case BLOCK:
+                break;
+            }
+        }
+        while (!stopped && !offer(e)) {
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    // Waits until the writer has handled everything queued so far.
+    private void drain() {
+        long t = tail.get();
+        while (writer.isAlive() && head < t) {
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    // Lets the writer finish the queue, then waits for it to exit.
+    private void stop() {
+        stopped = true;
+        LockSupport.unpark(writer);
+        if (Thread.currentThread() == writer) {
+            return;
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        long h = head;
+        long reported = 0;
+        while (true) {
+            int n = 0;
+            Event e;
+            while (n < BATCH_SIZE && (e = ring.get((int) (h & mask))) != null) {
+                ring.lazySet((int) (h & mask), null);
+                try {
+                    e.run();
+                } catch (IOException | RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+                head = ++h;
+                n++;
+            }
+            long d = dropped.get();
+            if (d != reported) {
+                delegate.logDroppedResults(d - reported);
+                reported = d;
+                n++;
+            }
+            if (n > 0) {
+                delegate.flush();
+            } else if (stopped && h == tail.get()) {
+                return;
+            } else {
+                // announce before checking for work, so that a producer
+                // which claims a slot after the check sees it and unparks
+                idle = true;
+                if (!stopped && h == tail.get() && d == dropped.get()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+        }
+    }
+
+    @Override
+    public void saveSearchFactory(SearchFactory searchFactory,
+            Set<String> desiredAttributes) throws IOException {
+        // run synchronously so that errors reach the caller
+        drain();
+        delegate.saveSearchFactory(searchFactory, desiredAttributes);
+    }
+
+    @Override
+    public void logNoMoreResults() {
+        put(new Event() {
+            public void run() {
+                delegate.logNoMoreResults();
+            }
+        }, false);
+    }
+
+    @Override
+    public void saveGetNewResult(final Result result) {
+        put(new Event() {
+            public void run() {
+                delegate.saveGetNewResult(result);
+            }
+        }, true);
+    }
+
+    @Override
+    public void updateStatistics(Map<String, ServerStatistics> result) {
+        final Map<String, ServerStatistics> copy = result != null ?
+                new HashMap<String, ServerStatistics>(result) : null;
+        put(new Event() {
+            public void run() {
+                delegate.updateStatistics(copy);
+            }
+        }, false);
+    }
+
+    @Override
+    public void startedSearch() {
+        put(new Event() {
+            public void run() {
+                delegate.startedSearch();
+            }
+        }, false);
+    }
+
+    @Override
+    public void stoppedSearch(final Throwable cause) {
+        put(new Event() {
+            public void run() {
+                delegate.stoppedSearch(cause);
+            }
+        }, false);
+        stop();
+    }
+
+    @Override
+    public void saveSessionVariables(Map<String, Double> sessionVariables)
+            throws IOException {
+        // run synchronously so that errors reach the caller
+        drain();
+        delegate.saveSessionVariables(sessionVariables);
+    }
+
+    @Override
+    public void shutdown(final Throwable cause) {
+        put(new Event() {
+            public void run() {
+                delegate.shutdown(cause);
+            }
+        }, false);
+        stop();
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        delegate.flush();
+    }
+
+    @Override
+    public void logDroppedResults(long count) {
+        dropped.addAndGet(count);
+        wakeWriter();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The attributes an application read from the results of earlier searches
+ * with the same filters, used to choose the push attributes of an
+ * adaptive search.
+ * <p>
+ * Profiles are stored in a directory named by
+ * <code>edu.cmu.cs.diamond.opendiamond.attributeprofile.directory</code>,
+ * by default <code>~/.diamond/attribute-profiles</code>, in one file per
+ * set of filters.  The file is keyed by the names, code, and blobs of the
+ * filters but not their thresholds or arguments, which don't change the
+ * attributes produced.  Each saved search which read any attributes
+ * counts as one generation; an attribute not read for
+ * <code>edu.cmu.cs.diamond.opendiamond.attributeprofile.expiry</code>
+ * generations (default 20) is dropped.
+ */
+final class AttributeProfile {
+    private static final File PROFILE_DIR = new File(System.getProperty(
+            "edu.cmu.cs.diamond.opendiamond.attributeprofile.directory",
+            Util.joinPaths(Util.joinPaths(System.getProperty("user.home"),
+                    ".diamond"), "attribute-profiles")));
+
+    private static final int EXPIRY = Integer.getInteger(
+            "edu.cmu.cs.diamond.opendiamond.attributeprofile.expiry", 20);
+
+    private static final String GENERATION = "generation";
+
+    private static final String ATTRIBUTE_PREFIX = "attribute.";
+
+    // serializes read-modify-write of profile files in this process
+    private static final Object fileLock = new Object();
+
+    private final File file;
+
+    private final Set<String> pushAttributes;
+
+    private final Set<String> read = ConcurrentHashMap.newKeySet();
+
+    private AttributeProfile(File file, Set<String> pushAttributes) {
+        this.file = file;
+        this.pushAttributes = pushAttributes;
+    }
+
+    static AttributeProfile load(List<Filter> filters) {
+        File file = new File(PROFILE_DIR, key(filters));
+        Set<String> attributes = null;
+        synchronized (fileLock) {
+            Properties p = readProfile(file);
+            if (p != null) {
+                attributes = new HashSet<String>();
+                for (String name : p.stringPropertyNames()) {
+                    if (name.startsWith(ATTRIBUTE_PREFIX)) {
+                        attributes.add(name.substring(
+                                ATTRIBUTE_PREFIX.length()));
+                    }
+                }
+            }
+        }
+        if (attributes != null && attributes.isEmpty()) {
+            attributes = null;
+        }
+        return new AttributeProfile(file, attributes);
+    }
+
+    private static String key(List<Filter> filters) {
+        List<String> parts = new ArrayList<String>();
+        for (Filter f : filters) {
+            parts.add(f.getName() + "\0"
+                    + f.getFilterCode().getSignature().asString() + "\0"
+                    + f.getBlobSig().asString());
+        }
+        Collections.sort(parts);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String s : parts) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.write(b, 0, b.length);
+            out.write('\n');
+        }
+        return new Signature(out.toByteArray()).asString();
+    }
+
+    private static Properties readProfile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties p = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } catch (IllegalArgumentException e) {
+            // malformed; start over
+            return null;
+        }
+        return p;
+    }
+
+    // The attributes to push, or null if nothing has been learned yet
+    Set<String> getPushAttributes() {
+        return pushAttributes;
+    }
+
+    void record(String name) {
+        if (!read.contains(name)) {
+            read.add(name);
+        }
+    }
+
+    // Merges the attributes read by this search into the stored profile
+    void save() {
+        if (read.isEmpty()) {
+            return;
+        }
+        synchronized (fileLock) {
+            Properties old = readProfile(file);
+            int generation = 1;
+            Map<String, Integer> lastRead = new HashMap<String, Integer>();
+            if (old != null) {
+                try {
+                    generation = Integer.parseInt(old.getProperty(
+                            GENERATION, "0")) + 1;
+                    for (String name : old.stringPropertyNames()) {
+                        if (name.startsWith(ATTRIBUTE_PREFIX)) {
+                            lastRead.put(name.substring(ATTRIBUTE_PREFIX
+                                    .length()), Integer.valueOf(old
+                                    .getProperty(name)));
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    generation = 1;
+                    lastRead.clear();
+                }
+            }
+            for (String name : read) {
+                lastRead.put(name, generation);
+            }
+
+            Properties p = new Properties();
+            p.setProperty(GENERATION, Integer.toString(generation));
+            for (Map.Entry<String, Integer> e : lastRead.entrySet()) {
+                if (generation - e.getValue() < EXPIRY) {
+                    p.setProperty(ATTRIBUTE_PREFIX + e.getKey(), e
+                            .getValue().toString());
+                }
+            }
+
+            try {
+                PROFILE_DIR.mkdirs();
+                File tmp = File.createTempFile("profile", ".tmp",
+                        PROFILE_DIR);
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    p.store(out, "OpenDiamond attribute profile");
+                } finally {
+                    out.close();
+                }
+                Files.move(tmp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
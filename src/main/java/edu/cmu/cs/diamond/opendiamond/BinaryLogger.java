@@ -0,0 +1,404 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A LoggingFramework which writes a compact binary event stream.
+ * <p>
+ * Each search gets one file of length-prefixed records in a directory
+ * for this process.  Filter code and blobs are stored once, named by
+ * their SHA-256 signature, in an <code>objects</code> directory shared
+ * by all searches.  Logs are read back with {@link SearchLogReader}.
+ */
+class BinaryLogger extends LoggingFramework {
+
+    private static final File LOG_DIR = new File(System.getProperty(
+            "edu.cmu.cs.diamond.opendiamond.loggingframework.directory",
+            Util.joinPaths(System.getProperty("user.home"),
+                    "opendiamond-logs")));
+
+    private static final File OBJECT_DIR = new File(LOG_DIR,
+            SearchLogReader.OBJECT_DIR);
+
+    private static final AtomicInteger searchCounter = new AtomicInteger(0);
+
+    // objects known to be in OBJECT_DIR
+    private static final Set<Signature> storedObjects =
+            Collections.synchronizedSet(new HashSet<Signature>());
+
+    private static File sessionDir;
+
+    private final DataOutputStream out;
+
+    // the record being built
+    private final ByteArrayOutputStream recordBuf =
+            new ByteArrayOutputStream();
+
+    private final DataOutputStream record = new DataOutputStream(recordBuf);
+
+    private final boolean detailedResults = Boolean.getBoolean(
+            "edu.cmu.cs.diamond.opendiamond.loggingframework.detailedresults");
+
+    private boolean closed;
+
+    private final Object lock = new Object();
+
+    BinaryLogger(String logMessage) throws IOException {
+        File file = new File(getSessionDir(), "search_" +
+                searchCounter.getAndIncrement() +
+                SearchLogReader.FILE_SUFFIX);
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 65536));
+        out.writeInt(SearchLogReader.MAGIC);
+        out.writeInt(SearchLogReader.VERSION);
+
+        synchronized (lock) {
+            begin(SearchLogReader.Type.OPENED);
+            writeString(record, logMessage);
+            end(true);
+        }
+    }
+
+    // Create the directory for this process -- only executes once.
+    private static synchronized File getSessionDir() throws IOException {
+        if (sessionDir == null) {
+            SimpleDateFormat sdf = new SimpleDateFormat();
+            sdf.applyPattern("yyyy-MM-dd'T'HH:mm:ssZ");
+            String date = sdf.format(new Date());
+            File dir;
+            do {
+                dir = new File(LOG_DIR, date + "_" + UUID.randomUUID());
+            } while (!dir.mkdirs());
+            sessionDir = dir;
+        }
+        return sessionDir;
+    }
+
+    // Stores data under its signature unless already present
+    private static void storeObject(Signature sig, byte[] data)
+            throws IOException {
+        if (data == null || storedObjects.contains(sig)) {
+            return;
+        }
+        File file = new File(OBJECT_DIR, sig.asString());
+        if (!file.exists()) {
+            OBJECT_DIR.mkdirs();
+            File tmp = File.createTempFile("object", ".tmp", OBJECT_DIR);
+            try {
+                try (OutputStream o = new FileOutputStream(tmp)) {
+                    o.write(data);
+                }
+                try {
+                    Files.move(tmp.toPath(), file.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    // stored concurrently by someone else
+                }
+            } finally {
+                tmp.delete();
+            }
+        }
+        storedObjects.add(sig);
+    }
+
+    private void begin(SearchLogReader.Type type) throws IOException {
+        recordBuf.reset();
+        record.writeByte(type.getCode());
+        record.writeLong(System.currentTimeMillis());
+    }
+
+    private void end(boolean flush) throws IOException {
+        if (closed) {
+            return;
+        }
+        out.writeInt(recordBuf.size());
+        recordBuf.writeTo(out);
+        if (flush) {
+            out.flush();
+        }
+    }
+
+    private void close() {
+        if (!closed) {
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out,
+            Collection<String> strings) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                writeString(out, s);
+            }
+        }
+    }
+
+    private static void writeCounters(DataOutputStream out,
+            Map<String, Long> counters) throws IOException {
+        out.writeInt(counters.size());
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            writeString(out, e.getKey());
+            out.writeLong(e.getValue() != null ? e.getValue() : 0);
+        }
+    }
+
+    private static void writeSignature(DataOutputStream out, Signature sig)
+            throws IOException {
+        writeString(out, sig != null ? sig.asString() : null);
+    }
+
+    // logs failures without disturbing the search, like XMLLogger
+    private void writeFailed(IOException e) {
+        e.printStackTrace();
+        close();
+    }
+
+    @Override
+    public void saveSearchFactory(SearchFactory searchFactory,
+            Set<String> desiredAttributes) throws IOException {
+        if (searchFactory == null) {
+            return;
+        }
+        synchronized (lock) {
+            List<Filter> filters = searchFactory.getFilters();
+            begin(SearchLogReader.Type.SEARCH_FACTORY);
+            record.writeInt(filters.size());
+            for (Filter f : filters) {
+                Signature codeSig = null;
+                if (f.getFilterCode() != null) {
+                    codeSig = f.getFilterCode().getSignature();
+                    storeObject(codeSig, f.getFilterCode().getBytes());
+                }
+                storeObject(f.getBlobSig(), f.getBlob());
+                writeString(record, f.getName());
+                record.writeDouble(f.getMinScore());
+                record.writeDouble(f.getMaxScore());
+                writeSignature(record, codeSig);
+                writeSignature(record, f.getBlobSig());
+                writeStrings(record, f.getDependencies());
+                writeStrings(record, f.getArguments());
+            }
+            CookieMap cookieMap = searchFactory.getCookieMap();
+            writeString(record, cookieMap != null ?
+                    cookieMap.getMegaCookie() : null);
+            writeStrings(record, desiredAttributes);
+            end(true);
+        }
+    }
+
+    @Override
+    public void logNoMoreResults() {
+        synchronized (lock) {
+            try {
+                begin(SearchLogReader.Type.NO_MORE_RESULTS);
+                end(true);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        }
+    }
+
+    @Override
+    public void saveGetNewResult(Result result) {
+        if (result == null) {
+            return;
+        }
+        synchronized (lock) {
+            try {
+                begin(SearchLogReader.Type.RESULT);
+                ObjectIdentifier id = result.getObjectIdentifier();
+                writeString(record, id != null ? id.getHostname() : null);
+                writeString(record, id != null ? id.getObjectID() : null);
+                writeString(record, id != null ? id.getDeviceName() : null);
+                if (detailedResults) {
+                    Set<String> keys = result.getKeys();
+                    record.writeInt(keys.size());
+                    for (String key : keys) {
+                        byte[] value = result.getUnrecordedValue(key);
+                        writeString(record, key);
+                        record.writeInt(value != null ? value.length : -1);
+                        if (value != null) {
+                            record.write(value);
+                        }
+                    }
+                } else {
+                    record.writeInt(-1);
+                }
+                end(false);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        }
+    }
+
+    @Override
+    public void updateStatistics(Map<String, ServerStatistics> result) {
+        if (result == null) {
+            return;
+        }
+        synchronized (lock) {
+            try {
+                begin(SearchLogReader.Type.STATISTICS);
+                record.writeInt(result.size());
+                for (Map.Entry<String, ServerStatistics> e :
+                        result.entrySet()) {
+                    ServerStatistics ss = e.getValue();
+                    writeString(record, e.getKey());
+                    if (ss == null) {
+                        record.writeInt(0);
+                        record.writeInt(0);
+                        continue;
+                    }
+                    writeCounters(record, ss.getServerStats());
+                    Map<String, FilterStatistics> fs = ss.getFilterStats();
+                    record.writeInt(fs.size());
+                    for (Map.Entry<String, FilterStatistics> f :
+                            fs.entrySet()) {
+                        writeString(record, f.getKey());
+                        writeCounters(record, f.getValue().getFilterStats());
+                    }
+                }
+                end(true);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        }
+    }
+
+    @Override
+    public void startedSearch() {
+        synchronized (lock) {
+            try {
+                begin(SearchLogReader.Type.STARTED);
+                end(true);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        }
+    }
+
+    @Override
+    public void stoppedSearch(Throwable cause) {
+        synchronized (lock) {
+            try {
+                begin(SearchLogReader.Type.STOPPED);
+                writeString(record, cause != null ?
+                        Util.getStackTrace(cause) : null);
+                end(true);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+            close();
+        }
+    }
+
+    @Override
+    public void saveSessionVariables(Map<String, Double> sessionVariables)
+            throws IOException {
+        if (sessionVariables == null) {
+            return;
+        }
+        synchronized (lock) {
+            begin(SearchLogReader.Type.SESSION_VARIABLES);
+            record.writeInt(sessionVariables.size());
+            for (Map.Entry<String, Double> e : sessionVariables.entrySet()) {
+                writeString(record, e.getKey());
+                record.writeDouble(e.getValue() != null ? e.getValue()
+                        : Double.NaN);
+            }
+            end(true);
+        }
+    }
+
+    @Override
+    public void shutdown(Throwable cause) {
+        synchronized (lock) {
+            try {
+                begin(SearchLogReader.Type.SHUTDOWN);
+                writeString(record, cause != null ?
+                        Util.getStackTrace(cause) : null);
+                end(true);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+            close();
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (lock) {
+            if (!closed) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    writeFailed(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void logDroppedResults(long count) {
+        synchronized (lock) {
+            try {
+                begin(SearchLogReader.Type.DROPPED_RESULTS);
+                record.writeLong(count);
+                end(true);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        }
+    }
+}
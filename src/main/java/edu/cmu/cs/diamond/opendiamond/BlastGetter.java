@@ -40,8 +40,11 @@ class BlastGetter implements Callable<Object> {
     private XDR_object getAndAcknowldgeBlastChannelObject() throws IOException {
         // System.out.println(hostname + ": waiting for blast object");
         // receive previous reply
+        FlightEvents.BlastFrame event = new FlightEvents.BlastFrame();
+        event.begin();
         MiniRPCReply reply = new MiniRPCReply(connection.receiveBlast(),
                 hostname);
+        connection.getMetrics().blastFrame();
         reply.checkStatus();
 
         // send another request
@@ -49,7 +52,15 @@ class BlastGetter implements Callable<Object> {
 
         // System.out.println(hostname + ":   blast object done");
 
-        return new XDR_object(reply.getMessage().getData());
+        long decodeStart = System.nanoTime();
+        XDR_object obj = new XDR_object(reply.getMessage().getData());
+        if (event.shouldCommit()) {
+            event.host = hostname;
+            event.bytes = reply.getMessage().getDataLength();
+            event.decodeNanos = System.nanoTime() - decodeStart;
+            event.commit();
+        }
+        return obj;
     }
 
     public Object call() throws Exception {
@@ -19,14 +19,28 @@ class BlastQueue {
 
     private final BlockingQueue<BlastChannelObject> q;
 
+    private final int capacity;
+
+    private final SearchMetrics metrics;
+
     private final Object lock = new Object();
 
     private volatile boolean shutdown;
 
     private volatile boolean pause;
 
-    public BlastQueue(int size) {
+    public BlastQueue(int size, SearchMetrics metrics) {
         q = new ArrayBlockingQueue<BlastChannelObject>(size);
+        capacity = size;
+        this.metrics = metrics;
+    }
+
+    public int size() {
+        return q.size();
+    }
+
+    public int capacity() {
+        return capacity;
     }
 
     public void put(BlastChannelObject blastChannelObject)
@@ -70,7 +84,13 @@ class BlastQueue {
                     return obj;
                 }
             } else {
-                return q.take(); // block
+                FlightEvents.QueueWait event = new FlightEvents.QueueWait();
+                event.begin();
+                long start = System.nanoTime();
+                BlastChannelObject obj = q.take(); // block
+                metrics.queueWait(System.nanoTime() - start);
+                event.commit();
+                return obj;
             }
         }
     }
@@ -0,0 +1,349 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Builds the Zip files passed to filters as blob arguments.
+ * <p>
+ * Members which are already compressed (such as PNG examples) are STORED
+ * rather than DEFLATED, per-member work is spread over several threads,
+ * and the archive is written into a single pre-sized array.  Members are
+ * sorted by name and all timestamps are fixed, so equal inputs always
+ * produce identical archives and server-side blob caching keeps working.
+ * Recently built archives are cached by the names and digests of their
+ * members.
+ */
+final class BlobArchiveEncoder {
+    private static final int LOC_SIG = 0x04034b50;
+
+    private static final int CEN_SIG = 0x02014b50;
+
+    private static final int EOCD_SIG = 0x06054b50;
+
+    private static final int LOC_SIZE = 30;
+
+    private static final int CEN_SIZE = 46;
+
+    private static final int EOCD_SIZE = 22;
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    // 1980-01-01 00:00, the earliest DOS timestamp
+    private static final int DOS_TIME = 0;
+
+    private static final int DOS_DATE = (1 << 5) | 1;
+
+    private static final int UTF8_FLAG = 0x800;
+
+    private static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+    // below this many bytes of input, threads cost more than they save
+    private static final long PARALLEL_THRESHOLD = 1 << 20;
+
+    private static final ExecutorService executor =
+            Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "blob-archive-encoder");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+
+    private static final long maxCacheBytes = Long.getLong(
+            "edu.cmu.cs.diamond.opendiamond.blobarchive.cachebytes",
+            DEFAULT_CACHE_BYTES);
+
+    private static final LinkedHashMap<List<Object>, byte[]> cache =
+            new LinkedHashMap<List<Object>, byte[]>(16, 0.75f, true);
+
+    private static long cacheBytes;
+
+    private static class Member {
+        private final byte[] name;
+
+        private final byte[] data;
+
+        private final boolean utf8;
+
+        private Signature sig;
+
+        private long crc;
+
+        private int method;
+
+        private byte[] compressed;
+
+        private Member(String name, byte[] data) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.data = data;
+            this.utf8 = this.name.length != name.length();
+        }
+
+        // the first pass: everything needed to look up the cache
+        private void digest() {
+            sig = new Signature(data);
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, data.length);
+            crc = crc32.getValue();
+        }
+
+        // the second pass, on a cache miss
+        private void compress() {
+            method = STORED;
+            compressed = data;
+            if (data.length == 0 || isCompressed(data)) {
+                return;
+            }
+            byte[] out = deflate(data);
+            if (out.length < data.length) {
+                method = DEFLATED;
+                compressed = out;
+            }
+        }
+    }
+
+    private BlobArchiveEncoder() {
+    }
+
+    /**
+     * Returns a Zip file containing the given members.  The result may be
+     * shared with other callers and must not be modified.
+     */
+    static byte[] encode(Map<String, byte[]> zipMap) throws IOException {
+        List<Member> members = new ArrayList<Member>();
+        long total = 0;
+        for (Map.Entry<String, byte[]> e : new TreeMap<String, byte[]>(
+                zipMap).entrySet()) {
+            members.add(new Member(e.getKey(), e.getValue()));
+            total += e.getValue().length;
+        }
+        if (members.size() >= 0xFFFF) {
+            throw new IOException("Too many blob archive members");
+        }
+        boolean parallel = total >= PARALLEL_THRESHOLD;
+
+        forEach(members, parallel, new MemberTask() {
+            public void run(Member m) {
+                m.digest();
+            }
+        });
+        List<Object> key = keyOf(members);
+        synchronized (cache) {
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        forEach(members, parallel, new MemberTask() {
+            public void run(Member m) {
+                m.compress();
+            }
+        });
+        byte[] archive = write(members);
+
+        synchronized (cache) {
+            if (archive.length <= maxCacheBytes &&
+                    !cache.containsKey(key)) {
+                cache.put(key, archive);
+                cacheBytes += archive.length;
+                Iterator<byte[]> it = cache.values().iterator();
+                while (cacheBytes > maxCacheBytes && it.hasNext()) {
+                    cacheBytes -= it.next().length;
+                    it.remove();
+                }
+            }
+        }
+        return archive;
+    }
+
+    private static List<Object> keyOf(List<Member> members) {
+        List<Object> key = new ArrayList<Object>();
+        for (Member m : members) {
+            key.add(new String(m.name, StandardCharsets.UTF_8));
+            key.add(m.sig);
+        }
+        return key;
+    }
+
+    private interface MemberTask {
+        void run(Member m);
+    }
+
+    private static void forEach(List<Member> members, boolean parallel,
+            final MemberTask task) throws IOException {
+        if (!parallel) {
+            for (Member m : members) {
+                task.run(m);
+            }
+            return;
+        }
+
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (final Member m : members) {
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() {
+                    task.run(m);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Object> f : futures) {
+                f.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static byte[] write(List<Member> members) throws IOException {
+        long size = EOCD_SIZE;
+        for (Member m : members) {
+            size += LOC_SIZE + CEN_SIZE + 2 * m.name.length +
+                    m.compressed.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Blob archive too large");
+        }
+
+        byte[] archive = new byte[(int) size];
+        ByteBuffer buf = ByteBuffer.wrap(archive);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int[] offsets = new int[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            Member m = members.get(i);
+            offsets[i] = buf.position();
+            buf.putInt(LOC_SIG);
+            putHeader(buf, m);
+            buf.putShort((short) 0);  // extra field length
+            buf.put(m.name);
+            buf.put(m.compressed);
+        }
+
+        int cdOffset = buf.position();
+        for (int i = 0; i < members.size(); i++) {
+            Member m = members.get(i);
+            buf.putInt(CEN_SIG);
+            buf.putShort((short) 20);  // version made by
+            putHeader(buf, m);
+            buf.putShort((short) 0);  // extra field length
+            buf.putShort((short) 0);  // comment length
+            buf.putShort((short) 0);  // disk number
+            buf.putShort((short) 0);  // internal attributes
+            buf.putInt(0);  // external attributes
+            buf.putInt(offsets[i]);
+            buf.put(m.name);
+        }
+        int cdSize = buf.position() - cdOffset;
+
+        buf.putInt(EOCD_SIG);
+        buf.putShort((short) 0);  // this disk
+        buf.putShort((short) 0);  // central directory disk
+        buf.putShort((short) members.size());
+        buf.putShort((short) members.size());
+        buf.putInt(cdSize);
+        buf.putInt(cdOffset);
+        buf.putShort((short) 0);  // comment length
+        return archive;
+    }
+
+    // the fields common to local and central headers, from "version
+    // needed" through the file name length
+    private static void putHeader(ByteBuffer buf, Member m) {
+        buf.putShort((short) (m.method == DEFLATED ? 20 : 10));
+        buf.putShort((short) (m.utf8 ? UTF8_FLAG : 0));
+        buf.putShort((short) m.method);
+        buf.putShort((short) DOS_TIME);
+        buf.putShort((short) DOS_DATE);
+        buf.putInt((int) m.crc);
+        buf.putInt(m.compressed.length);
+        buf.putInt(m.data.length);
+        buf.putShort((short) m.name.length);
+    }
+
+    // Recognizes formats which don't benefit from another round of
+    // compression
+    private static boolean isCompressed(byte[] data) {
+        return startsWith(data, 0x89, 'P', 'N', 'G') ||
+                startsWith(data, 0xFF, 0xD8, 0xFF) ||
+                startsWith(data, 'G', 'I', 'F', '8') ||
+                startsWith(data, 'P', 'K', 3, 4) ||
+                startsWith(data, 0x1F, 0x8B);
+    }
+
+    private static boolean startsWith(byte[] data, int... magic) {
+        if (data.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((data[i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            def.setInput(data);
+            def.finish();
+            byte[] out = new byte[data.length + 64];
+            int len = 0;
+            while (!def.finished()) {
+                if (len == out.length) {
+                    byte[] bigger = new byte[out.length * 2];
+                    System.arraycopy(out, 0, bigger, 0, len);
+                    out = bigger;
+                }
+                len += def.deflate(out, len, out.length - len);
+            }
+            byte[] result = new byte[len];
+            System.arraycopy(out, 0, result, 0, len);
+            return result;
+        } finally {
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers, for each server, the object data which
+ * {@link SearchFactory#generateResult(byte[], java.util.Set)} has
+ * uploaded to it or found already there, so that data the server is
+ * known to have is reexecuted directly and other data is uploaded before
+ * the first reexecution rather than after it misses.  Data larger than
+ * <code>edu.cmu.cs.diamond.opendiamond.blobpresence.eagerlimit</code>
+ * bytes (default 1 MB) is still reexecuted first, since the server may
+ * have it from elsewhere.
+ * <p>
+ * The most recently used
+ * <code>edu.cmu.cs.diamond.opendiamond.blobpresence.size</code>
+ * signatures (default 10000) are remembered per server.  A server may
+ * still have dropped remembered data from its cache, in which case the
+ * reexecution misses and the data is uploaded as before.
+ */
+public final class BlobPresenceTracker {
+    private static final int MAX_ENTRIES = Integer.getInteger(
+            "edu.cmu.cs.diamond.opendiamond.blobpresence.size", 10000);
+
+    private final Map<String, LinkedHashMap<Signature, Boolean>> hosts =
+            new HashMap<String, LinkedHashMap<Signature, Boolean>>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong staleMisses = new AtomicLong();
+
+    private final AtomicLong uploads = new AtomicLong();
+
+    private final AtomicLong eagerUploads = new AtomicLong();
+
+    BlobPresenceTracker() {
+    }
+
+    // Returns whether the host is thought to have the data
+    boolean isPresent(String host, Signature signature) {
+        synchronized (hosts) {
+            Map<Signature, Boolean> m = hosts.get(host);
+            return m != null && m.get(signature) != null;
+        }
+    }
+
+    private void setPresent(String host, Signature signature,
+            boolean present) {
+        synchronized (hosts) {
+            LinkedHashMap<Signature, Boolean> m = hosts.get(host);
+            if (m == null) {
+                if (!present) {
+                    return;
+                }
+                // access-ordered, dropping the least recently used
+                m = new LinkedHashMap<Signature, Boolean>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<Signature, Boolean> eldest) {
+                        return size() > MAX_ENTRIES;
+                    }
+                };
+                hosts.put(host, m);
+            }
+            if (present) {
+                m.put(signature, Boolean.TRUE);
+            } else {
+                m.remove(signature);
+            }
+        }
+    }
+
+    // A reexecution found the data on the host without an upload
+    void hit(String host, Signature signature) {
+        hits.incrementAndGet();
+        setPresent(host, signature, true);
+    }
+
+    // A reexecution found the host didn't have the data
+    void missed(String host, Signature signature) {
+        misses.incrementAndGet();
+        if (isPresent(host, signature)) {
+            staleMisses.incrementAndGet();
+            setPresent(host, signature, false);
+        }
+    }
+
+    // The data was uploaded to the host, after a miss or eagerly
+    void uploaded(String host, Signature signature, boolean eager) {
+        uploads.incrementAndGet();
+        if (eager) {
+            eagerUploads.incrementAndGet();
+        }
+        setPresent(host, signature, true);
+    }
+
+    /**
+     * Gets the number of reexecutions which found the data already on the
+     * server.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of reexecutions which found the data missing from
+     * the server and had to upload it and try again.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of misses for data the server was thought to have,
+     * because it had dropped the data from its cache.
+     */
+    public long getStaleMissCount() {
+        return staleMisses.get();
+    }
+
+    /**
+     * Gets the number of times data was uploaded.
+     */
+    public long getUploadCount() {
+        return uploads.get();
+    }
+
+    /**
+     * Gets the number of uploads sent before the first reexecution,
+     * without waiting for a miss.
+     */
+    public long getEagerUploadCount() {
+        return eagerUploads.get();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+/**
+ * Bloom filter over 64-bit hashes, sized for an expected number of values
+ * and false positive rate.  Bit positions are derived from the two halves
+ * of the hash.  Not thread-safe.
+ */
+final class BloomFilter implements ResultDeduplicator.IdSet {
+    private final long[] bits;
+
+    private final long numBits;
+
+    private final int numHashes;
+
+    private final long expected;
+
+    private long size;
+
+    BloomFilter(long expected, double falsePositiveRate) {
+        if (expected < 1) {
+            throw new IllegalArgumentException(
+                    "Expected count must be positive");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException(
+                    "False positive rate must be between 0 and 1");
+        }
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-expected * Math.log(falsePositiveRate)
+                / (ln2 * ln2));
+        int words = (int) Math.min((m + 63) / 64, Integer.MAX_VALUE - 8);
+        bits = new long[Math.max(words, 1)];
+        numBits = bits.length * 64L;
+        numHashes = Math.max(1, (int) Math.round((double) numBits
+                / expected * ln2));
+        this.expected = expected;
+    }
+
+    public boolean add(long value) {
+        long h1 = value;
+        long h2 = (value >>> 32) | (value << 32);
+        boolean added = false;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            int word = (int) (bit >>> 6);
+            long m = 1L << bit;
+            if ((bits[word] & m) == 0) {
+                bits[word] |= m;
+                added = true;
+            }
+        }
+        if (added) {
+            size++;
+        }
+        return added;
+    }
+
+    public long getMemoryUsage() {
+        return bits.length * 8L;
+    }
+
+    public boolean isSaturated() {
+        return size > expected;
+    }
+}
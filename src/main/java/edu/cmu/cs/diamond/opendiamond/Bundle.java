@@ -16,67 +16,59 @@ import edu.cmu.cs.diamond.opendiamond.bundle.*;
 import org.xml.sax.SAXException;
 
 import javax.xml.XMLConstants;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import java.io.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class Bundle implements Serializable{
     private static class Manifest {
-        private static final JAXBContext jaxbContext;
+        // Manifest parser: "jaxb" (the default) or "stax"
+        private static final boolean useStAX = "stax".equals(
+                System.getProperty(
+                "edu.cmu.cs.diamond.opendiamond.bundle.manifestparser"));
 
-        private static final Schema schema;
+        private static final boolean validate = Boolean.parseBoolean(
+                System.getProperty(
+                "edu.cmu.cs.diamond.opendiamond.bundle.validate", "true"));
 
-        static {
-            JAXBContext ctx = null;
-            Schema s = null;
-            try {
-                ctx = JAXBContext.newInstance(PredicateSpec.class);
-                SchemaFactory sf = SchemaFactory.newInstance(
-                        XMLConstants.W3C_XML_SCHEMA_NS_URI);
-                s = sf.newSchema(Bundle.class.getClassLoader().
-                        getResource("bundle.xsd"));
-            } catch (JAXBException e) {
-                e.printStackTrace();
-            } catch (SAXException e) {
-                e.printStackTrace();
+        // Loaded on first use, and only if validation is enabled
+        private static class SchemaHolder {
+            private static final Schema schema;
+
+            static {
+                Schema s = null;
+                try {
+                    SchemaFactory sf = SchemaFactory.newInstance(
+                            XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                    s = sf.newSchema(Bundle.class.getClassLoader().
+                            getResource("bundle.xsd"));
+                } catch (SAXException e) {
+                    e.printStackTrace();
+                }
+                // commit
+                schema = s;
             }
-            // commit
-            jaxbContext = ctx;
-            schema = s;
         }
 
-
         private final PredicateSpec spec;
 
         private final BundleType type;
 
-        public Manifest(InputStream in) throws BundleFormatException {
-            try {
-                Unmarshaller u = jaxbContext.createUnmarshaller();
-                u.setSchema(schema);
-                StreamSource source = new StreamSource(in);
-                JAXBElement<PredicateSpec> element = u.unmarshal(source,
-                        PredicateSpec.class);
-                this.spec = element.getValue();
-                this.type = BundleType.fromTag(element.getName()
-                        .getLocalPart());
-            } catch (JAXBException e) {
-                String msg = e.getMessage();
-                Throwable linked = e.getLinkedException();
-                if (linked != null) {
-                    msg = linked.getMessage();
-                }
-                throw new BundleFormatException(msg);
+        public Manifest(InputStream in) throws IOException {
+            Schema schema = validate ? SchemaHolder.schema : null;
+            if (useStAX) {
+                StAXManifestReader reader = new StAXManifestReader(in,
+                        schema);
+                this.spec = reader.getSpec();
+                this.type = reader.getType();
+            } else {
+                JAXBManifestReader reader = new JAXBManifestReader(in,
+                        schema);
+                this.spec = reader.getSpec();
+                this.type = reader.getType();
             }
         }
 
@@ -96,6 +88,94 @@ public class Bundle implements Serializable{
                 throws IOException;
 
         public abstract Manifest getManifest() throws IOException;
+
+        public abstract byte[] getBlob(String name) throws IOException;
+
+        // Returns an object which changes identity whenever the bundle
+        // contents may have changed
+        public abstract Object getVersion() throws IOException;
+
+        public FilterCode getCode(String name) throws IOException {
+            return new FilterCode(getBlob(name));
+        }
+
+        protected abstract List<File> getMemberDirs();
+
+        // name -> stamp of the file outside the bundle it was last read
+        // from; these files can change without changing getVersion()
+        private transient Map<String, String> externalStamps;
+
+        // Look for a file outside the bundle: first in the member
+        // directories, then as a local path
+        protected byte[] getExternalBlob(String name) throws IOException {
+            File file = findExternalFile(getMemberDirs(), name);
+            if (file == null) {
+                System.out.println("Trying to resolve locally: " + name);
+                throw new IOException("File not found: " + name);
+            }
+            // stamp before reading, so a write during the read is seen
+            // as a change next time
+            String stamp = getStamp(file);
+            byte[] data = readFile(file);
+            synchronized (this) {
+                if (externalStamps == null) {
+                    externalStamps = new HashMap<String, String>();
+                }
+                externalStamps.put(name, stamp);
+            }
+            return data;
+        }
+
+        // Returns whether any file read by getExternalBlob() has changed,
+        // or would now be found elsewhere, since it was read
+        public boolean externalFilesChanged() {
+            Map<String, String> stamps;
+            synchronized (this) {
+                if (externalStamps == null) {
+                    return false;
+                }
+                stamps = new HashMap<String, String>(externalStamps);
+            }
+            for (Map.Entry<String, String> e : stamps.entrySet()) {
+                File file = findExternalFile(getMemberDirs(), e.getKey());
+                if (file == null || !getStamp(file).equals(e.getValue())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public synchronized void forgetExternalFiles() {
+            externalStamps = null;
+        }
+
+        private static File findExternalFile(List<File> memberDirs,
+                String name) {
+            // In member directories
+            for (File dir : memberDirs) {
+                File file = new File(dir, name);
+                if (file.exists()) {
+                    return file;
+                }
+            }
+            // Local path
+            File file = new File(name);
+            if (file.exists()) {
+                return file;
+            }
+            return null;
+        }
+
+        private static String getStamp(File file) {
+            return file.getAbsolutePath() + "\0" + file.lastModified() +
+                    "\0" + file.length();
+        }
+
+        private static byte[] readFile(File file) throws IOException {
+            try (FileInputStream in = new FileInputStream(file)) {
+                return Util.readFully(in);
+            }
+        }
     }
 
     private static class PendingFileLoader extends FileLoader {
@@ -103,11 +183,22 @@ public class Bundle implements Serializable{
 
         private final List<File> memberDirs;
 
+        private transient BundleArchive archive;
+
         public PendingFileLoader(File bundleFile, List<File> memberDirs) {
             this.bundleFile = bundleFile;
             this.memberDirs = memberDirs;
         }
 
+        // Map the bundle, remapping it if it has changed on disk since
+        // we last looked
+        private synchronized BundleArchive getArchive() throws IOException {
+            if (archive == null || archive.isStale()) {
+                archive = BundleArchive.open(bundleFile);
+            }
+            return archive;
+        }
+
         @Override
         public PreparedFileLoader getPreparedLoader() throws IOException {
             return new PreparedFileLoader(new FileInputStream(bundleFile),
@@ -116,26 +207,33 @@ public class Bundle implements Serializable{
 
         @Override
         public Manifest getManifest() throws IOException {
-            // Read the manifest from the bundle and return it without
-            // loading the entire bundle into memory
-            FileInputStream in = new FileInputStream(bundleFile);
-            try {
-                ZipInputStream zip = new ZipInputStream(in);
-                ZipEntry entry;
-                while ((entry = zip.getNextEntry()) != null) {
-                    if (entry.getName().equals(MANIFEST_NAME)) {
-                        return new Manifest(zip);
-                    } else {
-                        zip.closeEntry();
-                    }
-                }
+            // Read the manifest from the bundle without inflating any
+            // other members
+            byte[] manifest = getArchive().getBytes(MANIFEST_NAME);
+            if (manifest == null) {
                 throw new BundleFormatException("Bundle manifest not found");
-            } finally {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                }
             }
+            return new Manifest(new ByteArrayInputStream(manifest));
+        }
+
+        @Override
+        public Object getVersion() throws IOException {
+            return getArchive();
+        }
+
+        @Override
+        protected List<File> getMemberDirs() {
+            return memberDirs;
+        }
+
+        @Override
+        public byte[] getBlob(String name) throws IOException {
+            // In bundle
+            byte[] data = getArchive().getBytes(name);
+            if (data != null) {
+                return data;
+            }
+            return getExternalBlob(name);
         }
     }
 
@@ -168,30 +266,24 @@ public class Bundle implements Serializable{
             return new Manifest(new ByteArrayInputStream(manifest));
         }
 
-        public FilterCode getCode(String name) throws IOException {
-            return new FilterCode(getBlob(name));
+        @Override
+        public Object getVersion() {
+            return this;
         }
 
+        @Override
+        protected List<File> getMemberDirs() {
+            return memberDirs;
+        }
+
+        @Override
         public byte[] getBlob(String name) throws IOException {
             // In bundle
             byte[] data = bundleContents.get(name);
             if (data != null) {
                 return data;
             }
-            // In member directories
-            for (File dir : memberDirs) {
-                File file = new File(dir, name);
-                if (file.exists()) {
-                    return Util.readFully(new FileInputStream(file));
-                }
-            }
-            // Local path
-            File file = new File(name);
-            System.out.println("Trying to resolve locally: " + name);
-            if (file.exists()) {
-                return Util.readFully(new FileInputStream(file));
-            }
-            throw new IOException("File not found: " + name);
+            return getExternalBlob(name);
         }
     }
 
@@ -225,6 +317,13 @@ public class Bundle implements Serializable{
                 return value != null;
             }
 
+            // forget the value of a label reference
+            public void reset() {
+                if (key != null) {
+                    value = null;
+                }
+            }
+
             public String getKey() {
                 return key;
             }
@@ -247,6 +346,8 @@ public class Bundle implements Serializable{
 
         private final byte[] blob;
 
+        private Signature blobSig;
+
         private final double minScore;
 
         private final double maxScore;
@@ -261,49 +362,40 @@ public class Bundle implements Serializable{
 
         private boolean resolved;
 
-        public PendingFilter(PreparedFileLoader loader,
+        // argument values and the name they hashed to, from the last
+        // resolution
+        private List<String> lastArguments;
+
+        private String lastName;
+
+        // the Filter built from the last resolution
+        private Filter filter;
+
+        public PendingFilter(FileLoader loader,
                 Map<String, String> optionMap, List<byte[]> examples,
                 FilterSpec f) throws IOException {
+            this(loader, optionMap, examples, f, null);
+        }
+
+        // If previous is specified, it must have been created from the
+        // same FilterSpec with the same values for getBlobOptions() and
+        // the same examples; its code and blob are reused.
+        public PendingFilter(FileLoader loader,
+                Map<String, String> optionMap, List<byte[]> examples,
+                FilterSpec f, PendingFilter previous) throws IOException {
             // load basic metadata
             label = f.getLabel();
 
-            // load code
-            code = loader.getCode(f.getCode());
-
-            // load blob
-            FilterBlobArgumentSpec blobSpec = f.getBlob();
-            if (blobSpec != null) {
-                FilterBlobExampleSpec exampleSpec = blobSpec.getExamples();
-                if (blobSpec.getMembers().size() > 0 || exampleSpec != null) {
-                    // Construct a Zip file containing individual members.
-                    // First add the explicit members
-                    Map<String, byte[]> zipMap = new HashMap<String, byte[]>();
-                    for (FilterBlobMemberSpec member : blobSpec.getMembers()) {
-                        byte[] data = getBlobData(loader, optionMap,
-                                member.getOption(), member.getData());
-                        zipMap.put(member.getFilename(), data);
-                    }
-                    // Now add the examples
-                    if (exampleSpec != null) {
-                        if (examples == null) {
-                            throw new BundleFormatException(
-                                    "Missing example specification");
-                        }
-                        // Add examples directory
-                        zipMap.put("examples/", new byte[0]);
-                        int i = 0;
-                        for (byte[] example : examples) {
-                            zipMap.put(String.format("examples/%07d.png", i++), example);
-                        }
-                    }
-                    blob = Util.encodeZipFile(zipMap);
-                } else {
-                    // Blob is specified directly
-                    blob = getBlobData(loader, optionMap,
-                            blobSpec.getOption(), blobSpec.getData());
-                }
+            // load code and blob
+            if (previous != null) {
+                code = previous.code;
+                blob = previous.blob;
+                blobSig = previous.blobSig;
+                lastArguments = previous.lastArguments;
+                lastName = previous.lastName;
             } else {
-                blob = new byte[0];
+                code = loader.getCode(f.getCode());
+                blob = loadBlob(loader, optionMap, examples, f.getBlob());
             }
 
             // load thresholds
@@ -363,6 +455,20 @@ public class Bundle implements Serializable{
             return failingLabel;
         }
 
+        // Return to the unresolved state so that label references can be
+        // resolved again against a new set of sibling filters.
+        public void reset() {
+            name = null;
+            resolved = false;
+            failingLabel = null;
+            for (PendingString argument : arguments) {
+                argument.reset();
+            }
+            for (PendingString dependency : dependencies) {
+                dependency.reset();
+            }
+        }
+
         public boolean isResolved() {
             return resolved;
         }
@@ -398,6 +504,16 @@ public class Bundle implements Serializable{
             }
 
             // now we can calculate the filter name
+            if (name == null) {
+                List<String> argValues = new ArrayList<String>();
+                for (PendingString arg : arguments) {
+                    argValues.add(arg.getValue());
+                }
+                if (argValues.equals(lastArguments)) {
+                    name = lastName;
+                    progressed |= addToLabelMap(labelMap);
+                }
+            }
             if (name == null) {
                 try {
                     MessageDigest m = MessageDigest.getInstance("SHA-256");
@@ -413,6 +529,11 @@ public class Bundle implements Serializable{
                         ff.format("%02x", b & 0xFF);
                     }
                     name = "z" + ff.toString();
+                    lastArguments = new ArrayList<String>();
+                    for (PendingString arg : arguments) {
+                        lastArguments.add(arg.getValue());
+                    }
+                    lastName = name;
                     progressed |= addToLabelMap(labelMap);
                 } catch (NoSuchAlgorithmException e) {
                     // can't happen on java 6?
@@ -455,8 +576,56 @@ public class Bundle implements Serializable{
                 args.add(argument.getValue());
             }
 
-            return new Filter(name, code, minScore, maxScore, deps, args,
-                    blob);
+            // reuse the last Filter if nothing changed, and avoid
+            // rehashing the blob if it has
+            if (filter == null || !filter.getName().equals(name) ||
+                    !new HashSet<String>(filter.getDependencies())
+                    .equals(deps) || !filter.getArguments().equals(args)) {
+                if (blobSig == null) {
+                    blobSig = new Signature(blob);
+                }
+                filter = new Filter(name, code, minScore, maxScore, deps,
+                        args, blob, blobSig);
+            }
+            return filter;
+        }
+
+        // Returns the names of the options which determine the blob of a
+        // FilterSpec, in a stable order.  Entries may be null.
+        public static List<String> getBlobOptions(FilterSpec f) {
+            List<String> options = new ArrayList<String>();
+            FilterBlobArgumentSpec blobSpec = f.getBlob();
+            if (blobSpec != null) {
+                options.add(blobSpec.getOption());
+                for (FilterBlobMemberSpec member : blobSpec.getMembers()) {
+                    options.add(member.getOption());
+                }
+            }
+            return options;
+        }
+
+        // Returns the names of the options which determine the thresholds
+        // and arguments of a FilterSpec, in a stable order.  Entries may
+        // be null.
+        public static List<String> getParameterOptions(FilterSpec f) {
+            List<String> options = new ArrayList<String>();
+            if (f.getMinScore() != null) {
+                options.add(f.getMinScore().getOption());
+            }
+            if (f.getMaxScore() != null) {
+                options.add(f.getMaxScore().getOption());
+            }
+            FilterArgumentList argList = f.getArgumentList();
+            if (argList != null) {
+                for (FilterArgumentSpec arg : argList.getArguments()) {
+                    options.add(arg.getOption());
+                }
+            }
+            return options;
+        }
+
+        public static boolean usesExamples(FilterSpec f) {
+            return f.getBlob() != null && f.getBlob().getExamples() != null;
         }
 
         // returns true if successful, false if there was nothing to add
@@ -512,9 +681,46 @@ public class Bundle implements Serializable{
             }
         }
 
+        private static byte[] loadBlob(FileLoader loader,
+                Map<String, String> optionMap, List<byte[]> examples,
+                FilterBlobArgumentSpec blobSpec) throws IOException {
+            if (blobSpec == null) {
+                return new byte[0];
+            }
+            FilterBlobExampleSpec exampleSpec = blobSpec.getExamples();
+            if (blobSpec.getMembers().size() > 0 || exampleSpec != null) {
+                // Construct a Zip file containing individual members.
+                // First add the explicit members
+                Map<String, byte[]> zipMap = new HashMap<String, byte[]>();
+                for (FilterBlobMemberSpec member : blobSpec.getMembers()) {
+                    byte[] data = getBlobData(loader, optionMap,
+                            member.getOption(), member.getData());
+                    zipMap.put(member.getFilename(), data);
+                }
+                // Now add the examples
+                if (exampleSpec != null) {
+                    if (examples == null) {
+                        throw new BundleFormatException(
+                                "Missing example specification");
+                    }
+                    // Add examples directory
+                    zipMap.put("examples/", new byte[0]);
+                    int i = 0;
+                    for (byte[] example : examples) {
+                        zipMap.put(String.format("examples/%07d.png", i++), example);
+                    }
+                }
+                return BlobArchiveEncoder.encode(zipMap);
+            } else {
+                // Blob is specified directly
+                return getBlobData(loader, optionMap,
+                        blobSpec.getOption(), blobSpec.getData());
+            }
+        }
+
         // option is the name of an option containing the blob filename,
         // data is the blob filename
-        private static byte[] getBlobData(PreparedFileLoader loader,
+        private static byte[] getBlobData(FileLoader loader,
                 Map<String, String> optionMap, String option, String data)
                 throws IOException {
             String filename;
@@ -536,12 +742,53 @@ public class Bundle implements Serializable{
     }
 
 
+    // Filters compiled by earlier getFilters() calls, for one version of
+    // the bundle contents
+    private static class FilterCache {
+        private final Object version;
+
+        private final List<FilterSpec> specs;
+
+        // per FilterSpec: the inputs it was last compiled with, and the
+        // result
+        private final List<List<String>> blobKeys;
+
+        private final List<List<String>> parameterKeys;
+
+        private final List<List<Signature>> exampleKeys;
+
+        private final List<PendingFilter> compiled;
+
+        // the signatures of the examples of the last complete call
+        private List<Signature> exampleSigs;
+
+        // the inputs and result of the last complete call
+        private Map<String, String> lastOptions;
+
+        private List<Filter> lastFilters;
+
+        private FilterCache(Object version, List<FilterSpec> specs) {
+            this.version = version;
+            this.specs = specs;
+            blobKeys = new ArrayList<List<String>>(
+                    Collections.<List<String>>nCopies(specs.size(), null));
+            parameterKeys = new ArrayList<List<String>>(
+                    Collections.<List<String>>nCopies(specs.size(), null));
+            exampleKeys = new ArrayList<List<Signature>>(
+                    Collections.<List<Signature>>nCopies(specs.size(), null));
+            compiled = new ArrayList<PendingFilter>(
+                    Collections.<PendingFilter>nCopies(specs.size(), null));
+        }
+    }
+
     private final FileLoader loader;
 
     private final String displayName;
 
     private final BundleType type;
 
+    private transient FilterCache filterCache;
+
     public Bundle(FileLoader loader) throws IOException {
         this.loader = loader;
         Manifest manifest = loader.getManifest();
@@ -549,12 +796,27 @@ public class Bundle implements Serializable{
         this.type = manifest.getType();
     }
 
+    // For callers which already know the manifest metadata.
+    private Bundle(FileLoader loader, String displayName, BundleType type) {
+        this.loader = loader;
+        this.displayName = displayName;
+        this.type = type;
+    }
+
     // Return a bundle which loads data from the filesystem on request.
     static Bundle getBundle(File bundleFile, List<File> memberDirs)
             throws IOException {
         return new Bundle(new PendingFileLoader(bundleFile, memberDirs));
     }
 
+    // Return a bundle which loads data from the filesystem on request,
+    // without reading the manifest until it is needed.
+    static Bundle getBundle(File bundleFile, List<File> memberDirs,
+            String displayName, BundleType type) {
+        return new Bundle(new PendingFileLoader(bundleFile, memberDirs),
+                displayName, type);
+    }
+
     // Return a bundle which caches bundle contents.
     static Bundle getBundle(InputStream in, List<File> memberDirs)
             throws IOException {
@@ -613,17 +875,67 @@ public class Bundle implements Serializable{
         return getFilters(optionMap, null);
     }
 
-    public List<Filter> getFilters(Map<String, String> optionMap,
+    // Filters are memoized: a FilterSpec is only reloaded if the values of
+    // the options it references, or the examples it uses, have changed.
+    // Unchanged filters are returned as the same Filter objects.
+    public synchronized List<Filter> getFilters(Map<String, String> optionMap,
             List<byte[]> examples) throws IOException {
-        PreparedFileLoader loader = this.loader.getPreparedLoader();
+        Object version = loader.getVersion();
+        FilterCache cache = filterCache;
+        if (cache == null || cache.version != version ||
+                loader.externalFilesChanged()) {
+            loader.forgetExternalFiles();
+            cache = new FilterCache(version, loader.getManifest().getSpec()
+                    .getFilterList().getFilters());
+            filterCache = cache;
+        }
 
-        // Create pending filters
+        // Examples are compared by contents, since callers may reuse
+        // their arrays
+        List<Signature> exampleSigs = null;
+        if (examples != null) {
+            exampleSigs = new ArrayList<Signature>();
+            for (byte[] example : examples) {
+                exampleSigs.add(new Signature(example));
+            }
+        }
+
+        // Nothing changed since last time?
+        if (cache.lastFilters != null &&
+                Objects.equals(exampleSigs, cache.exampleSigs) &&
+                Objects.equals(optionMap, cache.lastOptions)) {
+            return new ArrayList<Filter>(cache.lastFilters);
+        }
+        cache.lastFilters = null;
+
+        // Create pending filters, reusing those whose inputs are unchanged
         ArrayList<PendingFilter> pending = new ArrayList<PendingFilter>();
         HashMap<String, String> labelMap = new HashMap<String, String>();
-        List<FilterSpec> specs = loader.getManifest().getSpec()
-                .getFilterList().getFilters();
-        for (FilterSpec f : specs) {
-            pending.add(new PendingFilter(loader, optionMap, examples, f));
+        for (int i = 0; i < cache.specs.size(); i++) {
+            FilterSpec f = cache.specs.get(i);
+            List<String> blobKey = getOptionValues(optionMap,
+                    PendingFilter.getBlobOptions(f));
+            List<String> parameterKey = getOptionValues(optionMap,
+                    PendingFilter.getParameterOptions(f));
+            List<Signature> exampleKey = PendingFilter.usesExamples(f) ?
+                    exampleSigs : null;
+
+            PendingFilter pf = cache.compiled.get(i);
+            if (pf == null || !blobKey.equals(cache.blobKeys.get(i)) ||
+                    !Objects.equals(exampleKey, cache.exampleKeys.get(i))) {
+                // reload everything
+                pf = new PendingFilter(loader, optionMap, examples, f);
+            } else if (!parameterKey.equals(cache.parameterKeys.get(i))) {
+                // only thresholds or arguments changed; keep code and blob
+                pf = new PendingFilter(loader, optionMap, examples, f, pf);
+            } else {
+                pf.reset();
+            }
+            cache.compiled.set(i, pf);
+            cache.blobKeys.set(i, blobKey);
+            cache.parameterKeys.set(i, parameterKey);
+            cache.exampleKeys.set(i, exampleKey);
+            pending.add(pf);
         }
 
         // Attempt to resolve label references.  This may take several
@@ -647,7 +959,22 @@ public class Bundle implements Serializable{
             }
             filters.add(pf.getFilter());
         }
-        return filters;
+
+        cache.lastOptions = optionMap != null ?
+                new HashMap<String, String>(optionMap) : null;
+        cache.exampleSigs = exampleSigs;
+        cache.lastFilters = filters;
+        return new ArrayList<Filter>(filters);
+    }
+
+    private static List<String> getOptionValues(Map<String, String> optionMap,
+            List<String> options) {
+        List<String> values = new ArrayList<String>();
+        for (String option : options) {
+            values.add(option != null && optionMap != null ?
+                    optionMap.get(option) : null);
+        }
+        return values;
     }
 
     /**
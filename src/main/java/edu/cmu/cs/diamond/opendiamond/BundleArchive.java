@@ -0,0 +1,328 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Random-access view of a bundle Zip file.
+ * <p>
+ * The file is memory-mapped and only its central directory is parsed up
+ * front.  Members are located on request: STORED members are returned as
+ * views into the mapping, and DEFLATED members are inflated and kept in a
+ * size-bounded LRU cache.
+ */
+final class BundleArchive {
+    private static final int EOCD_SIG = 0x06054b50;
+
+    private static final int CEN_SIG = 0x02014b50;
+
+    private static final int LOC_SIG = 0x04034b50;
+
+    private static final int EOCD_SIZE = 22;
+
+    private static final int CEN_SIZE = 46;
+
+    private static final int LOC_SIZE = 30;
+
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    private static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+    private static class Member {
+        private final int method;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private final int headerOffset;
+
+        private int dataOffset = -1;
+
+        private Member(int method, long compressedSize, long size,
+                int headerOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    private final File file;
+
+    private final long lastModified;
+
+    private final long length;
+
+    private final ByteBuffer map;
+
+    private final Map<String, Member> members;
+
+    private final long maxCacheBytes;
+
+    private final LinkedHashMap<String, byte[]> inflated =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    private long inflatedBytes;
+
+    private BundleArchive(File file, long lastModified, long length,
+            ByteBuffer map, long maxCacheBytes) throws IOException {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.map = map;
+        this.maxCacheBytes = maxCacheBytes;
+        this.members = readCentralDirectory();
+    }
+
+    static BundleArchive open(File file) throws IOException {
+        long maxCacheBytes = Long.getLong(
+                "edu.cmu.cs.diamond.opendiamond.bundle.cachebytes",
+                DEFAULT_CACHE_BYTES);
+        return open(file, maxCacheBytes);
+    }
+
+    static BundleArchive open(File file, long maxCacheBytes)
+            throws IOException {
+        // sample the timestamp before mapping, so that a concurrent
+        // rewrite makes us look stale rather than current
+        long lastModified = file.lastModified();
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new BundleFormatException("Bundle too large: " + file);
+            }
+            ByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            return new BundleArchive(file, lastModified, size, map,
+                    maxCacheBytes);
+        }
+    }
+
+    /**
+     * Returns true if the underlying file has been modified since it was
+     * opened.
+     */
+    boolean isStale() {
+        return file.lastModified() != lastModified ||
+                file.length() != length;
+    }
+
+    Set<String> getNames() {
+        return Collections.unmodifiableSet(members.keySet());
+    }
+
+    boolean contains(String name) {
+        return members.containsKey(name);
+    }
+
+    /**
+     * Gets a read-only buffer holding the uncompressed contents of a
+     * member, or <code>null</code> if there is no such member.
+     */
+    synchronized ByteBuffer getMember(String name) throws IOException {
+        Member m = members.get(name);
+        if (m == null) {
+            return null;
+        }
+        switch (m.method) {
+        case STORED:
+            if (m.compressedSize != m.size) {
+                throw new BundleFormatException(
+                        "Corrupt stored member \"" + name + "\"");
+            }
+            return slice(getDataOffset(name, m), (int) m.size);
+        case DEFLATED:
+            return ByteBuffer.wrap(getInflated(name, m)).asReadOnlyBuffer();
+        default:
+            throw new BundleFormatException("Unsupported compression " +
+                    "method " + m.method + " for \"" + name + "\"");
+        }
+    }
+
+    /**
+     * Gets a private copy of the uncompressed contents of a member, or
+     * <code>null</code> if there is no such member.
+     */
+    byte[] getBytes(String name) throws IOException {
+        ByteBuffer buf = getMember(name);
+        if (buf == null) {
+            return null;
+        }
+        byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+        return data;
+    }
+
+    private byte[] getInflated(String name, Member m) throws IOException {
+        byte[] data = inflated.get(name);
+        if (data != null) {
+            return data;
+        }
+
+        if (m.size > Integer.MAX_VALUE) {
+            throw new BundleFormatException(
+                    "Bundle member \"" + name + "\" too large");
+        }
+        data = new byte[(int) m.size];
+        Inflater inf = new Inflater(true);
+        try {
+            inf.setInput(slice(getDataOffset(name, m),
+                    (int) m.compressedSize));
+            int off = 0;
+            while (off < data.length) {
+                int n = inf.inflate(data, off, data.length - off);
+                if (n == 0 && (inf.finished() || inf.needsInput() ||
+                        inf.needsDictionary())) {
+                    break;
+                }
+                off += n;
+            }
+            if (off != data.length) {
+                throw new BundleFormatException(
+                        "Truncated bundle member \"" + name + "\"");
+            }
+        } catch (DataFormatException e) {
+            throw new BundleFormatException("Corrupt bundle member \"" +
+                    name + "\": " + e.getMessage());
+        } finally {
+            inf.end();
+        }
+
+        // cache, evicting least recently used members
+        if (data.length <= maxCacheBytes) {
+            inflated.put(name, data);
+            inflatedBytes += data.length;
+            Iterator<byte[]> it = inflated.values().iterator();
+            while (inflatedBytes > maxCacheBytes && it.hasNext()) {
+                inflatedBytes -= it.next().length;
+                it.remove();
+            }
+        }
+        return data;
+    }
+
+    private int getDataOffset(String name, Member m) throws IOException {
+        if (m.dataOffset < 0) {
+            int p = m.headerOffset;
+            if (p + LOC_SIZE > map.limit() || map.getInt(p) != LOC_SIG) {
+                throw new BundleFormatException(
+                        "Bad local header for \"" + name + "\"");
+            }
+            int nameLen = u16(p + 26);
+            int extraLen = u16(p + 28);
+            int offset = p + LOC_SIZE + nameLen + extraLen;
+            if (offset + m.compressedSize > map.limit()) {
+                throw new BundleFormatException(
+                        "Truncated bundle member \"" + name + "\"");
+            }
+            m.dataOffset = offset;
+        }
+        return m.dataOffset;
+    }
+
+    private Map<String, Member> readCentralDirectory() throws IOException {
+        int eocd = findEndOfCentralDirectory();
+        int count = u16(eocd + 10);
+        long cdOffset = u32(eocd + 16);
+        if (count == 0xFFFF || cdOffset == 0xFFFFFFFFL) {
+            throw new BundleFormatException("Zip64 bundles not supported");
+        }
+        if (cdOffset > eocd) {
+            throw new BundleFormatException("Corrupt bundle directory");
+        }
+
+        Map<String, Member> result = new HashMap<String, Member>(count * 2);
+        int p = (int) cdOffset;
+        for (int i = 0; i < count; i++) {
+            if (p + CEN_SIZE > eocd || map.getInt(p) != CEN_SIG) {
+                throw new BundleFormatException("Corrupt bundle directory");
+            }
+            int flags = u16(p + 8);
+            int method = u16(p + 10);
+            long compressedSize = u32(p + 20);
+            long size = u32(p + 24);
+            int nameLen = u16(p + 28);
+            int extraLen = u16(p + 30);
+            int commentLen = u16(p + 32);
+            long headerOffset = u32(p + 42);
+            if ((flags & 1) != 0) {
+                throw new BundleFormatException(
+                        "Encrypted bundles not supported");
+            }
+            // the variable-length fields must fit before the end record
+            long next = (long) p + CEN_SIZE + nameLen + extraLen +
+                    commentLen;
+            if (headerOffset >= eocd || next > eocd) {
+                throw new BundleFormatException("Corrupt bundle directory");
+            }
+
+            byte[] nameBytes = new byte[nameLen];
+            ByteBuffer b = slice(p + CEN_SIZE, nameLen);
+            b.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            result.put(name, new Member(method, compressedSize, size,
+                    (int) headerOffset));
+
+            p = (int) next;
+        }
+        return result;
+    }
+
+    private int findEndOfCentralDirectory() throws IOException {
+        int limit = map.limit();
+        int min = Math.max(0, limit - EOCD_SIZE - MAX_COMMENT);
+        for (int p = limit - EOCD_SIZE; p >= min; p--) {
+            if (map.getInt(p) == EOCD_SIG &&
+                    p + EOCD_SIZE + u16(p + 20) == limit) {
+                return p;
+            }
+        }
+        throw new BundleFormatException("Not a Zip file: " + file);
+    }
+
+    private ByteBuffer slice(int offset, int len) {
+        ByteBuffer b = map.duplicate();
+        b.position(offset);
+        b.limit(offset + len);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    private int u16(int offset) {
+        return map.getShort(offset) & 0xFFFF;
+    }
+
+    private long u32(int offset) {
+        return map.getInt(offset) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Cache of the bundles found in a set of bundle directories.
+ * <p>
+ * Bundles are keyed by path and remembered along with the modification
+ * time and size of the file, so that only new or changed files have their
+ * manifests parsed.  Parsing is done in parallel.  The catalog can
+ * optionally be persisted to an index file, and can watch the bundle
+ * directories for changes so that a refresh only examines files which
+ * have been touched.
+ */
+class BundleCatalog {
+    private static final int INDEX_MAGIC = 0x4f444249;
+
+    private static final int INDEX_VERSION = 1;
+
+    private static class Entry {
+        private final long lastModified;
+
+        private final long length;
+
+        private final Bundle bundle;
+
+        private final String error;
+
+        private Entry(long lastModified, long length, Bundle bundle,
+                String error) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.bundle = bundle;
+            this.error = error;
+        }
+
+        private boolean matches(File file) {
+            return file.lastModified() == lastModified &&
+                    file.length() == length;
+        }
+    }
+
+    private final List<File> bundleDirs;
+
+    private final List<File> memberDirs;
+
+    private final File indexFile;
+
+    // dir -> filename -> entry; guarded by this
+    private final Map<File, TreeMap<String, Entry>> catalog =
+            new HashMap<File, TreeMap<String, Entry>>();
+
+    // entries from the index file which have not been revalidated
+    private final Map<File, Entry> indexed = new HashMap<File, Entry>();
+
+    private boolean scanned;
+
+    // maintained by the watcher thread
+    private final Set<File> dirty = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean rescan;
+
+    private WatchService watcher;
+
+    // watched directory for each key; shared with the watcher thread
+    private final Map<WatchKey, File> watchKeys =
+            new ConcurrentHashMap<WatchKey, File>();
+
+    private Thread watchThread;
+
+    BundleCatalog(List<File> bundleDirs, List<File> memberDirs,
+            File indexFile) {
+        this.bundleDirs = bundleDirs;
+        this.memberDirs = memberDirs;
+        this.indexFile = indexFile;
+        if (indexFile != null) {
+            readIndex();
+        }
+    }
+
+    synchronized List<Bundle> getBundles(BundleType types[])
+            throws InterruptedException {
+        refresh();
+
+        List<BundleType> wanted = Arrays.asList(types);
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (File dir : bundleDirs) {
+            TreeMap<String, Entry> entries = catalog.get(dir);
+            if (entries == null) {
+                continue;
+            }
+            for (Entry e : entries.values()) {
+                if (e.bundle != null && wanted.contains(e.bundle.getType())) {
+                    bundles.add(e.bundle);
+                }
+            }
+        }
+        return bundles;
+    }
+
+    /**
+     * Gets the files which could not be loaded as bundles during the last
+     * refresh, along with the reason.
+     */
+    synchronized Map<File, String> getErrors() {
+        Map<File, String> errors = new TreeMap<File, String>();
+        for (Map.Entry<File, TreeMap<String, Entry>> d : catalog.entrySet()) {
+            for (Map.Entry<String, Entry> e : d.getValue().entrySet()) {
+                if (e.getValue().error != null) {
+                    errors.put(new File(d.getKey(), e.getKey()),
+                            e.getValue().error);
+                }
+            }
+        }
+        return errors;
+    }
+
+    synchronized void startWatching() throws IOException {
+        if (watcher != null) {
+            return;
+        }
+        final WatchService ws = FileSystems.getDefault().newWatchService();
+        watchKeys.clear();
+        try {
+            // directories which don't exist yet are registered by
+            // refresh() once they appear
+            for (File dir : bundleDirs) {
+                if (dir.isDirectory()) {
+                    register(ws, dir);
+                }
+            }
+        } catch (IOException e) {
+            watchKeys.clear();
+            ws.close();
+            throw e;
+        }
+
+        watchThread = new Thread(new Runnable() {
+            public void run() {
+                watch(ws);
+            }
+        }, "bundle-catalog-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        watcher = ws;
+
+        // anything may have changed before we started watching
+        rescan = true;
+    }
+
+    synchronized void stopWatching() {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watcher.close();
+        } catch (IOException e) {
+        }
+        watchThread.interrupt();
+        watchKeys.clear();
+        watcher = null;
+        watchThread = null;
+    }
+
+    private void register(WatchService ws, File dir) throws IOException {
+        watchKeys.put(dir.toPath().register(ws,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY), dir);
+    }
+
+    // Starts watching bundle directories which have been created since
+    // they were last watched, and returns whether there were any
+    private boolean registerNewDirectories() {
+        boolean added = false;
+        for (File dir : bundleDirs) {
+            if (!watchKeys.containsValue(dir) && dir.isDirectory()) {
+                try {
+                    register(watcher, dir);
+                    added = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return added;
+    }
+
+    private void watch(WatchService ws) {
+        try {
+            while (true) {
+                WatchKey key = ws.take();
+                File dir = watchKeys.get(key);
+                if (dir == null) {
+                    key.cancel();
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan = true;
+                    } else {
+                        Path name = (Path) event.context();
+                        dirty.add(new File(dir, name.toString()));
+                    }
+                }
+                if (!key.reset()) {
+                    // directory went away; watch it again if it comes back
+                    watchKeys.remove(key);
+                    rescan = true;
+                }
+            }
+        } catch (InterruptedException e) {
+        } catch (ClosedWatchServiceException e) {
+        }
+    }
+
+    // Bring the catalog up to date.  Without a watcher, every directory is
+    // listed and every file is checked against its cached timestamp; with
+    // one, only files named in change events are examined.
+    private void refresh() throws InterruptedException {
+        List<File> candidates = new ArrayList<File>();
+        boolean removed = false;
+        // files in a newly watched directory have no events
+        boolean full = !scanned || watcher == null || rescan;
+        if (watcher != null && registerNewDirectories()) {
+            full = true;
+        }
+        if (full) {
+            rescan = false;
+            dirty.clear();
+            for (File dir : bundleDirs) {
+                TreeMap<String, Entry> old = catalog.get(dir);
+                TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (!isBundleFile(file)) {
+                            continue;
+                        }
+                        Entry e = old != null ? old.get(file.getName()) : null;
+                        if (e != null && e.matches(file)) {
+                            entries.put(file.getName(), e);
+                        } else {
+                            candidates.add(file);
+                        }
+                    }
+                }
+                if (old != null && old.size() != entries.size()) {
+                    removed = true;
+                }
+                catalog.put(dir, entries);
+            }
+        } else {
+            for (File file : dirty) {
+                dirty.remove(file);
+                TreeMap<String, Entry> entries =
+                        catalog.get(file.getParentFile());
+                if (entries == null) {
+                    continue;
+                }
+                Entry e = entries.get(file.getName());
+                if (!isBundleFile(file) || !file.isFile()) {
+                    removed |= entries.remove(file.getName()) != null;
+                } else if (e == null || !e.matches(file)) {
+                    candidates.add(file);
+                }
+            }
+        }
+        scanned = true;
+
+        if (candidates.isEmpty() && !removed) {
+            return;
+        }
+        load(candidates);
+        indexed.clear();
+        if (indexFile != null) {
+            writeIndex();
+        }
+    }
+
+    private void load(List<File> files) throws InterruptedException {
+        List<File> toParse = new ArrayList<File>();
+        for (File file : files) {
+            Entry e = indexed.get(file);
+            if (e != null && e.matches(file)) {
+                catalog.get(file.getParentFile()).put(file.getName(), e);
+            } else {
+                toParse.add(file);
+            }
+        }
+        if (toParse.isEmpty()) {
+            return;
+        }
+
+        int threads = Math.min(toParse.size(),
+                Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Entry>> futures = new ArrayList<Future<Entry>>();
+            for (final File file : toParse) {
+                futures.add(executor.submit(new Callable<Entry>() {
+                    public Entry call() {
+                        return parse(file);
+                    }
+                }));
+            }
+            for (int i = 0; i < toParse.size(); i++) {
+                File file = toParse.get(i);
+                Entry e;
+                try {
+                    e = futures.get(i).get();
+                } catch (ExecutionException ex) {
+                    // record the file as it is now, so it isn't reparsed
+                    // until it changes
+                    e = new Entry(file.lastModified(), file.length(), null,
+                            String.valueOf(ex.getCause()));
+                }
+                if (e.error != null) {
+                    System.err.println("Couldn't load bundle " + file +
+                            ": " + e.error);
+                }
+                catalog.get(file.getParentFile()).put(file.getName(), e);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Entry parse(File file) {
+        // stat before reading, so a concurrent modification leaves the
+        // entry looking stale
+        long lastModified = file.lastModified();
+        long length = file.length();
+        try {
+            Bundle bundle = BundleFactory.loadBundle(file, memberDirs);
+            return new Entry(lastModified, length, bundle, null);
+        } catch (IOException e) {
+            String msg = e.getMessage();
+            return new Entry(lastModified, length, null,
+                    msg != null ? msg : e.toString());
+        } catch (RuntimeException e) {
+            // a malformed bundle may fail the parser in other ways
+            return new Entry(lastModified, length, null, e.toString());
+        }
+    }
+
+    private static boolean isBundleFile(File file) {
+        String name = file.getName();
+        for (BundleType type : BundleType.values()) {
+            if (name.endsWith("." + type.getExtension())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void readIndex() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC ||
+                    in.readInt() != INDEX_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File file = new File(in.readUTF());
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                BundleType type = BundleType.valueOf(in.readUTF());
+                String displayName = in.readUTF();
+                Bundle bundle = Bundle.getBundle(file, memberDirs,
+                        displayName, type);
+                indexed.put(file, new Entry(lastModified, length, bundle,
+                        null));
+            }
+        } catch (FileNotFoundException e) {
+        } catch (IOException | IllegalArgumentException e) {
+            // unusable index; we'll rebuild it
+            indexed.clear();
+        }
+    }
+
+    private void writeIndex() {
+        List<File> files = new ArrayList<File>();
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Map.Entry<File, TreeMap<String, Entry>> d : catalog.entrySet()) {
+            for (Map.Entry<String, Entry> e : d.getValue().entrySet()) {
+                if (e.getValue().bundle != null) {
+                    files.add(new File(d.getKey(), e.getKey()));
+                    entries.add(e.getValue());
+                }
+            }
+        }
+
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(entries.size());
+                for (int i = 0; i < entries.size(); i++) {
+                    Entry e = entries.get(i);
+                    out.writeUTF(files.get(i).getPath());
+                    out.writeLong(e.lastModified);
+                    out.writeLong(e.length);
+                    out.writeUTF(e.bundle.getType().name());
+                    out.writeUTF(e.bundle.getDisplayName());
+                }
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Couldn't write bundle index " + indexFile +
+                    ": " + e.getMessage());
+            tmp.delete();
+        }
+    }
+}
@@ -13,22 +13,44 @@
 package edu.cmu.cs.diamond.opendiamond;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.InputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class BundleFactory {
     private List<File> bundleDirs;
 
     private List<File> memberDirs;
 
+    private final BundleCatalog catalog;
+
     public BundleFactory(List<File> bundleDirs, List<File> memberDirs) {
+        this(bundleDirs, memberDirs, null);
+    }
+
+    /**
+     * Constructs a bundle factory whose catalog of bundles is persisted
+     * to an index file, so that later instances need not re-read the
+     * manifests of bundles which have not changed.
+     *
+     * @param bundleDirs
+     *            the directories to search for bundles
+     * @param memberDirs
+     *            the directories to search for files referenced by bundles
+     * @param indexFile
+     *            the file in which to persist the catalog, or
+     *            <code>null</code> for none
+     */
+    public BundleFactory(List<File> bundleDirs, List<File> memberDirs,
+            File indexFile) {
         this.bundleDirs = new ArrayList<File>(bundleDirs);
         this.memberDirs = Collections.unmodifiableList(new
                 ArrayList<File>(memberDirs));
+        this.catalog = new BundleCatalog(this.bundleDirs, this.memberDirs,
+                indexFile);
     }
 
     public List<Bundle> getBundles() {
@@ -39,34 +61,56 @@ public class BundleFactory {
         return getBundles(new BundleType[] { type });
     }
 
+    // Bundles whose files have not changed since the last call are
+    // returned from the catalog without being reparsed.
     private List<Bundle> getBundles(final BundleType types[]) {
-        List<Bundle> bundles = new ArrayList<Bundle>();
-        FilenameFilter filter = new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                for (BundleType type : types) {
-                    if (name.endsWith("." + type.getExtension())) {
-                        return true;
-                    }
-                }
-                return false;
-            }
-        };
-        for (File dir : bundleDirs) {
-            for (File file : dir.listFiles(filter)) {
-                try {
-                    bundles.add(getBundle(file));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        try {
+            return catalog.getBundles(types);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<Bundle>();
         }
-        return bundles;
+    }
+
+    /**
+     * Gets the files in the bundle directories which could not be loaded,
+     * along with the reason, as of the last call to <code>getBundles</code>.
+     *
+     * @return a map from bundle files to error messages
+     */
+    public Map<File, String> getBundleErrors() {
+        return catalog.getErrors();
+    }
+
+    /**
+     * Watches the bundle directories for changes, so that
+     * <code>getBundles</code> only needs to examine files which have been
+     * modified rather than listing every directory.  Bundle directories
+     * which don't exist yet are watched once <code>getBundles</code> finds
+     * that they have been created.
+     *
+     * @throws IOException
+     *             if the directories cannot be watched
+     */
+    public void startWatching() throws IOException {
+        catalog.startWatching();
+    }
+
+    /**
+     * Stops watching the bundle directories.
+     */
+    public void stopWatching() {
+        catalog.stopWatching();
     }
 
     // Does not cache the contents of the file.  The file is reloaded when
     // getFilters() is called.
     public Bundle getBundle(File file) throws IOException {
+        return loadBundle(file, memberDirs);
+    }
+
+    static Bundle loadBundle(File file, List<File> memberDirs)
+            throws IOException {
         Bundle bundle = Bundle.getBundle(file, memberDirs);
         String ext = "." + bundle.getType().getExtension();
         if (!file.getName().endsWith(ext)) {
@@ -20,6 +20,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -37,10 +38,16 @@ class Connection {
 
     final private String hostname;
 
+    final private HostMetrics metrics;
+
     String getHostname() {
         return hostname;
     }
 
+    HostMetrics getMetrics() {
+        return metrics;
+    }
+
     // all public methods must close() on IOException!
 
 
@@ -75,14 +82,25 @@ class Connection {
     }
 
     Connection(MiniRPCConnection control, MiniRPCConnection blast,
-            String hostname) {
+            String hostname, HostMetrics metrics) {
         this.control = control;
         this.blast = blast;
         this.hostname = hostname;
+        this.metrics = metrics;
     }
 
     static Connection createConnection(String host, List<Cookie> cookieList,
             List<Filter> filters) throws ServerException {
+        return createConnection(host, cookieList, filters,
+                new HostMetrics(host));
+    }
+
+    static Connection createConnection(String host, List<Cookie> cookieList,
+            List<Filter> filters, HostMetrics metrics)
+            throws ServerException {
+        long start = System.nanoTime();
+        FlightEvents.Connect event = new FlightEvents.Connect();
+        event.begin();
 
         byte nonce[] = new byte[NONCE_SIZE];
 
@@ -93,11 +111,13 @@ class Connection {
 
         try {
             // open control (if exception is thrown here, it's ok)
-            control = new MiniRPCConnection(createOneChannel(host, nonce, proxyFlag));
+            control = new MiniRPCConnection(createOneChannel(host, nonce,
+                    proxyFlag), metrics);
 
             // open data
             try {
-                blast = new MiniRPCConnection(createOneChannel(host, nonce, proxyFlag));
+                blast = new MiniRPCConnection(createOneChannel(host, nonce,
+                        proxyFlag), metrics);
             } catch (IOException e) {
                 try {
                     // close control and propagate
@@ -107,16 +127,31 @@ class Connection {
                 throw e;
             }
 
-            Connection conn = new Connection(control, blast, host);
+            Connection conn = new Connection(control, blast, host, metrics);
             conn.sendPreStart(cookieList, filters);
+            metrics.connected(System.nanoTime() - start);
+            commitConnect(event, host, proxyFlag, true);
             return conn;
         } catch (IOException e) {
+            commitConnect(event, host, proxyFlag, false);
             throw new ServerException(host, e);
         }
     }
 
+    private static void commitConnect(FlightEvents.Connect event,
+            String host, boolean proxy, boolean succeeded) {
+        if (event.shouldCommit()) {
+            event.host = host;
+            event.proxy = proxy;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
     private void sendPreStart(List<Cookie> cookieList, List<Filter> filters)
             throws IOException {
+        FlightEvents.Setup event = new FlightEvents.Setup();
+        event.begin();
         try {
             List<XDR_filter_config> configs = new ArrayList<XDR_filter_config>();
             HashMap<URI, byte[]> uriToBlob = new HashMap<URI, byte[]>();
@@ -151,14 +186,26 @@ class Connection {
             // see if any blobs missed in the server's cache
             List<URI> missing = new XDR_blob_list(reply.getMessage()
                     .getData()).getURIs();
+            long uploaded = 0;
             if (missing.size() > 0) {
                 // collect blob data for those blobs
                 List<byte[]> blobData = new ArrayList<byte[]>();
                 for (URI uri : missing) {
-                    blobData.add(uriToBlob.get(uri));
+                    byte[] blob = uriToBlob.get(uri);
+                    blobData.add(blob);
+                    uploaded += blob.length;
                 }
                 sendBlobs(blobData);
             }
+
+            if (event.shouldCommit()) {
+                event.host = hostname;
+                event.filters = filters.size();
+                event.blobs = uriToBlob.size();
+                event.missingBlobs = missing.size();
+                event.bytesUploaded = uploaded;
+                event.commit();
+            }
         } catch (IOException e) {
             close();
             throw e;
@@ -166,13 +213,26 @@ class Connection {
     }
 
     public void sendBlobs(List<byte[]> blobs) throws IOException {
+        FlightEvents.BlobUpload event = new FlightEvents.BlobUpload();
+        event.begin();
         byte[] encodedBlobs = new XDR_blob_data(blobs).encode();
 
         // send_blobs = 26
         new RPC(this, hostname, 26, encodedBlobs).doRPC().checkStatus();
+
+        if (event.shouldCommit()) {
+            event.host = hostname;
+            event.blobs = blobs.size();
+            for (byte[] blob : blobs) {
+                event.bytes += blob.length;
+            }
+            event.commit();
+        }
     }
 
     public void sendStart(Set<String> pushAttributes) throws IOException {
+        FlightEvents.Start event = new FlightEvents.Start();
+        event.begin();
         try {
             // Generate a random UUID and use it as the search ID.
             // OpenDiamond-Java doesn't use this for anything, but the servers
@@ -185,6 +245,108 @@ class Connection {
 
             // start = 28
             new RPC(this, hostname, 28, encodedStart).doRPC().checkStatus();
+
+            if (event.shouldCommit()) {
+                event.host = hostname;
+                event.commit();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reexecutes several objects, keeping up to <code>window</code>
+     * requests outstanding and passing each reply to the handler as it
+     * arrives.  Objects the server no longer has are skipped.
+     */
+    public void reexecuteAll(List<Result> results, Set<String> attributes,
+            int window, ReexecuteHandler handler) throws IOException,
+            InterruptedException {
+        try {
+            // replies are matched to requests by sequence number
+            Map<Long, PendingReexecution> pending =
+                    new HashMap<Long, PendingReexecution>();
+            int next = 0;
+            while (next < results.size() || !pending.isEmpty()) {
+                while (next < results.size() && pending.size() < window) {
+                    Result r = results.get(next++);
+                    byte[] reexec = new XDR_reexecute(r
+                            .getObjectIdentifier().getObjectID(),
+                            attributes).encode();
+                    PendingReexecution p = new PendingReexecution(r,
+                            reexec.length);
+                    // reexecute = 30
+                    pending.put(sendControlRequest(30, reexec), p);
+                }
+
+                MiniRPCMessage msg = receiveControl();
+                PendingReexecution p = pending.remove(msg.getSequence());
+                if (p == null) {
+                    throw new IOException("Unexpected reply from "
+                            + hostname + ": " + msg);
+                }
+                p.finish(msg);
+                if (msg.getStatus() == RPC.DIAMOND_FCACHEMISS) {
+                    continue;
+                }
+                new MiniRPCReply(msg, hostname).checkStatus();
+                handler.reexecuted(p.result, new XDR_attr_list(msg
+                        .getData()).createMap());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // A pipelined reexecution awaiting its reply, timed like RPC.doRPC()
+    private class PendingReexecution {
+        private final Result result;
+
+        private final int requestBytes;
+
+        private final FlightEvents.Rpc event = new FlightEvents.Rpc();
+
+        private final long start;
+
+        private PendingReexecution(Result result, int requestBytes) {
+            this.result = result;
+            this.requestBytes = requestBytes;
+            event.begin();
+            start = System.nanoTime();
+        }
+
+        private void finish(MiniRPCMessage reply) {
+            metrics.rpc(30, System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.host = hostname;
+                event.command = 30;
+                event.status = reply.getStatus();
+                event.requestBytes = requestBytes;
+                event.replyBytes = reply.getDataLength();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Reexecutes one object and returns its attributes, or
+     * <code>null</code> if the server no longer has it.
+     */
+    public Map<String, byte[]> reexecute(String objectID,
+            Set<String> attributes) throws IOException {
+        try {
+            byte[] reexec = new XDR_reexecute(objectID, attributes).encode();
+            // reexecute = 30
+            MiniRPCReply reply = new RPC(this, hostname, 30, reexec).doRPC();
+            if (reply.getMessage().getStatus() == RPC.DIAMOND_FCACHEMISS) {
+                return null;
+            }
+            reply.checkStatus();
+            return new XDR_attr_list(reply.getMessage().getData())
+                    .createMap();
         } catch (IOException e) {
             close();
             throw e;
@@ -202,6 +364,7 @@ class Connection {
     }
 
     void close() {
+        metrics.disconnected();
 
         try {
             control.close();
@@ -233,9 +396,10 @@ class Connection {
         }
     }
 
-    public void sendControlRequest(int cmd, byte[] data) throws ServerException {
+    public long sendControlRequest(int cmd, byte[] data)
+            throws ServerException {
         try {
-            control.sendRequest(cmd, data);
+            return control.sendRequest(cmd, data);
         } catch (IOException e) {
             close();
             throw new ServerException(hostname, e);
@@ -0,0 +1,96 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Idle reexecution connections kept per server, so that fetching objects
+ * one at a time doesn't set up a new connection for each.  After the pool
+ * is closed, released connections are closed instead of kept.
+ */
+class ConnectionPool {
+    private final CookieMap cookieMap;
+
+    private final List<Filter> filters;
+
+    private final int maxIdle;
+
+    private final Map<String, Deque<Connection>> idle =
+            new HashMap<String, Deque<Connection>>();
+
+    private boolean closed;
+
+    ConnectionPool(CookieMap cookieMap, List<Filter> filters, int maxIdle) {
+        this.cookieMap = cookieMap;
+        this.filters = filters;
+        this.maxIdle = maxIdle;
+    }
+
+    // Returns an idle connection to the host, or null if there is none.
+    // The server may have dropped it while it was idle.
+    Connection borrowIdle(String host) {
+        synchronized (idle) {
+            Deque<Connection> d = idle.get(host);
+            if (d != null && !d.isEmpty()) {
+                return d.pop();
+            }
+            return null;
+        }
+    }
+
+    Connection connect(String host) throws IOException {
+        List<Cookie> cookies = cookieMap.get(host);
+        if (cookies == null) {
+            throw new IOException("No cookie found for host " + host);
+        }
+        return Connection.createConnection(host, cookies, filters);
+    }
+
+    // Returns a working connection to the pool
+    void release(String host, Connection conn) {
+        synchronized (idle) {
+            Deque<Connection> d = idle.get(host);
+            if (d == null) {
+                d = new ArrayDeque<Connection>();
+                idle.put(host, d);
+            }
+            if (!closed && d.size() < maxIdle) {
+                d.push(conn);
+                return;
+            }
+        }
+        conn.close();
+    }
+
+    // Closes the idle connections; later connections aren't pooled
+    void close() {
+        List<Connection> toClose = new ArrayList<Connection>();
+        synchronized (idle) {
+            closed = true;
+            for (Deque<Connection> d : idle.values()) {
+                toClose.addAll(d);
+            }
+            idle.clear();
+        }
+        for (Connection c : toClose) {
+            c.close();
+        }
+    }
+}
@@ -22,7 +22,7 @@ import java.util.concurrent.*;
 class ConnectionSet {
     private final Set<Connection> connections;
 
-    private final BlastQueue blastQueue = new BlastQueue(20);
+    private final BlastQueue blastQueue;
 
     private final ExecutorService executor;
 
@@ -32,9 +32,12 @@ class ConnectionSet {
 
     private volatile boolean closing;
 
-    ConnectionSet(ExecutorService executor, Set<Connection> connections) {
+    ConnectionSet(ExecutorService executor, Set<Connection> connections,
+            SearchMetrics metrics) {
         this.executor = executor;
         this.connections = new HashSet<Connection>(connections);
+        this.blastQueue = new BlastQueue(20, metrics);
+        metrics.setQueue(blastQueue);
 
         // create tasks for getting blast messages
         final CompletionService<Object> blastTasks = new ExecutorCompletionService<Object>(
@@ -145,4 +148,12 @@ class ConnectionSet {
     public int size() {
         return connections.size();
     }
+
+    public List<String> getHostnames() {
+        List<String> result = new ArrayList<String>();
+        for (Connection c : connections) {
+            result.add(c.getHostname());
+        }
+        return result;
+    }
 }
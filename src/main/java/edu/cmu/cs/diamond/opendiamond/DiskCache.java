@@ -0,0 +1,144 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory of cached files with a total size limit, deleting the least
+ * recently used files first.  The use order is kept in the files'
+ * modification times, so it survives restarts.  Files are written
+ * atomically, so a reader never sees a partial file.
+ */
+class DiskCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    // file name to file size, access-ordered
+    private final LinkedHashMap<String, Long> index =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private long bytes;
+
+    DiskCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // oldest first, to rebuild the access order
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (index) {
+            for (File f : files) {
+                if (f.isFile() && !f.getName().endsWith(TEMP_SUFFIX)) {
+                    index.put(f.getName(), f.length());
+                    bytes += f.length();
+                }
+            }
+            evict(null);
+        }
+    }
+
+    // Returns the contents of a file, or null if it isn't cached
+    byte[] get(String name) {
+        synchronized (index) {
+            if (index.get(name) == null) {
+                return null;
+            }
+        }
+        File file = new File(directory, name);
+        try {
+            byte[] contents = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis());
+            return contents;
+        } catch (IOException e) {
+            // evicted meanwhile
+            remove(name);
+            return null;
+        }
+    }
+
+    void put(String name, byte[] contents) {
+        File file = new File(directory, name);
+        try {
+            directory.mkdirs();
+            File tmp = File.createTempFile("cache", TEMP_SUFFIX, directory);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(contents);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        synchronized (index) {
+            Long old = index.put(name, (long) contents.length);
+            if (old != null) {
+                bytes -= old;
+            }
+            bytes += contents.length;
+            evict(name);
+        }
+    }
+
+    // Drops a file, such as one that turned out to be corrupt
+    void remove(String name) {
+        synchronized (index) {
+            Long size = index.remove(name);
+            if (size != null) {
+                bytes -= size;
+            }
+        }
+        new File(directory, name).delete();
+    }
+
+    // Deletes the least recently used files, except one, until the cache
+    // fits
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (e.getKey().equals(keep)) {
+                continue;
+            }
+            new File(directory, e.getKey()).delete();
+            bytes -= e.getValue();
+            it.remove();
+        }
+    }
+}
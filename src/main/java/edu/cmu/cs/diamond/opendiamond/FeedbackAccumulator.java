@@ -0,0 +1,245 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects relevance feedback for a search and sends it to the servers in
+ * batches, without blocking the caller or disturbing the flow of results.
+ * <p>
+ * Feedback is buffered until a batch reaches its maximum size, the oldest
+ * feedback in it reaches its maximum age, or {@link #flush()} is called.
+ * Batches are sent in order by a background thread.  Unlike
+ * {@link Search#retrainFilter(Map)}, results are neither paused nor
+ * discarded while feedback is sent.
+ * <p>
+ * Obtain an accumulator from {@link Search#createFeedbackAccumulator}.
+ * It must be closed when no longer needed.
+ */
+public final class FeedbackAccumulator implements Closeable {
+    private final Search search;
+
+    private final List<String> hostnames;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayNanos;
+
+    private Batch current;
+
+    private final Deque<Batch> ready = new ArrayDeque<Batch>();
+
+    private boolean closed;
+
+    private final Thread sender;
+
+    // Feedback sent together in one retrain RPC per server
+    static class Batch {
+        private final long created = System.nanoTime();
+
+        private String[] names;
+
+        private int[] labels;
+
+        private byte[][] features;
+
+        private int size;
+
+        private final CompletableFuture<Void> all =
+                new CompletableFuture<Void>();
+
+        private final Map<String, CompletableFuture<Void>> hosts =
+                new HashMap<String, CompletableFuture<Void>>();
+
+        private Batch(List<String> hostnames, int capacity) {
+            names = new String[capacity];
+            labels = new int[capacity];
+            features = new byte[capacity][];
+            for (String host : hostnames) {
+                hosts.put(host, new CompletableFuture<Void>());
+            }
+        }
+
+        private void add(String name, FeedbackObject feedback) {
+            if (size == names.length) {
+                int n = size * 2;
+                names = Arrays.copyOf(names, n);
+                labels = Arrays.copyOf(labels, n);
+                features = Arrays.copyOf(features, n);
+            }
+            names[size] = name;
+            labels[size] = feedback.label;
+            features[size] = feedback.feature_vector;
+            size++;
+        }
+
+        byte[] encode() {
+            return new XDR_retrain(Arrays.copyOf(names, size),
+                    Arrays.copyOf(labels, size),
+                    Arrays.copyOf(features, size)).encode();
+        }
+
+        CompletableFuture<Void> getHostFuture(String host) {
+            return hosts.get(host);
+        }
+
+        // Completes the futures of servers which haven't answered, and
+        // the batch as a whole
+        void finish(Throwable failure) {
+            if (failure == null) {
+                all.complete(null);
+                return;
+            }
+            for (CompletableFuture<Void> f : hosts.values()) {
+                f.completeExceptionally(failure);
+            }
+            all.completeExceptionally(failure);
+        }
+    }
+
+    FeedbackAccumulator(Search search, List<String> hostnames,
+            int maxBatchSize, long maxDelay, TimeUnit unit) {
+        if (maxBatchSize < 1 || maxDelay < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.search = search;
+        this.hostnames = hostnames;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+
+        sender = new Thread(new Runnable() {
+            public void run() {
+                sendLoop();
+            }
+        }, "feedback-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Adds feedback about one object.
+     *
+     * @param name
+     *            the name of the object, as passed to
+     *            {@link Search#retrainFilter(Map)}
+     * @param feedback
+     *            the label and feature vector
+     * @return a future which completes when every server has accepted the
+     *         batch containing this feedback, or fails with the
+     *         <code>IOException</code> which closed the search
+     * @throws IllegalStateException
+     *             if the accumulator has been closed
+     */
+    public synchronized Future<Void> add(String name,
+            FeedbackObject feedback) {
+        if (closed) {
+            throw new IllegalStateException("Feedback accumulator closed");
+        }
+        if (current == null) {
+            current = new Batch(hostnames, Math.min(maxBatchSize, 64));
+            // wake the sender to start the batch's timer
+            notifyAll();
+        }
+        Batch b = current;
+        b.add(name, feedback);
+        if (b.size >= maxBatchSize) {
+            cut();
+        }
+        return b.all;
+    }
+
+    /**
+     * Sends any buffered feedback now, without waiting for the batch to
+     * fill or age.
+     *
+     * @return a map of hostnames to futures which complete when each
+     *         server has accepted the feedback; empty if nothing was
+     *         buffered
+     */
+    public synchronized Map<String, Future<Void>> flush() {
+        if (current == null) {
+            return Collections.emptyMap();
+        }
+        Batch b = current;
+        cut();
+        return Collections.<String, Future<Void>>unmodifiableMap(b.hosts);
+    }
+
+    /**
+     * Sends any buffered feedback and stops accepting more.  Feedback
+     * already added is still delivered.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            if (current != null) {
+                cut();
+            }
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private void cut() {
+        ready.add(current);
+        current = null;
+        notifyAll();
+    }
+
+    private synchronized Batch nextBatch() throws InterruptedException {
+        while (true) {
+            if (!ready.isEmpty()) {
+                return ready.poll();
+            }
+            if (closed) {
+                return null;
+            }
+            if (current == null) {
+                wait();
+            } else {
+                long remaining = current.created + maxDelayNanos
+                        - System.nanoTime();
+                if (remaining <= 0) {
+                    cut();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+        }
+    }
+
+    private void sendLoop() {
+        Batch b;
+        try {
+            while ((b = nextBatch()) != null) {
+                try {
+                    search.sendFeedback(b);
+                } catch (RuntimeException e) {
+                    b.finish(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // nobody else interrupts this thread
+        }
+    }
+}
@@ -59,7 +59,14 @@ public class Filter {
     public Filter(String name, FilterCode code, double minScore,
             double maxScore, Collection<String> dependencies,
             List<String> arguments, byte blob[]) {
+        this(name, code, minScore, maxScore, dependencies, arguments, blob,
+                new Signature(blob));
+    }
 
+    // for callers which already know the signature of the blob
+    Filter(String name, FilterCode code, double minScore, double maxScore,
+            Collection<String> dependencies, List<String> arguments,
+            byte blob[], Signature blobSig) {
         this.name = name.trim();
         this.code = code;
         this.minScore = minScore;
@@ -70,7 +77,7 @@ public class Filter {
 
         this.blob = blob;
 
-        blobSig = new Signature(blob);
+        this.blobSig = blobSig;
     }
 
     /**
@@ -18,6 +18,8 @@ import java.util.Map;
  * A class representing some runtime statistics for a single filter.
  */
 public class FilterStatistics {
+    public static final String DROPPED_OBJECTS = "objs_dropped";
+    public static final String PROCESSED_OBJECTS = "objs_processed";
 
     private final String name;
 
@@ -0,0 +1,147 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by the client library.
+ * <p>
+ * Callers follow the usual pattern: create the event, call
+ * <code>begin()</code>, do the work, and fill in fields only if
+ * <code>shouldCommit()</code> returns true.  When no recording is running
+ * the events are never instrumented, and the JIT removes them.
+ */
+final class FlightEvents {
+    private static final String PREFIX = "edu.cmu.cs.diamond.opendiamond.";
+
+    private static final String CATEGORY = "OpenDiamond";
+
+    private FlightEvents() {
+    }
+
+    @Name(PREFIX + "Connect")
+    @Label("Connect")
+    @Description("Opening both channels to a server and configuring the "
+            + "search")
+    @Category(CATEGORY)
+    static final class Connect extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Via Proxy")
+        boolean proxy;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name(PREFIX + "Setup")
+    @Label("Setup")
+    @Description("Sending the search configuration, and any blobs the "
+            + "server is missing")
+    @Category(CATEGORY)
+    static final class Setup extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Filters")
+        int filters;
+
+        @Label("Blobs")
+        int blobs;
+
+        @Label("Missing Blobs")
+        int missingBlobs;
+
+        @Label("Bytes Uploaded")
+        @DataAmount
+        long bytesUploaded;
+    }
+
+    @Name(PREFIX + "BlobUpload")
+    @Label("Blob Upload")
+    @Category(CATEGORY)
+    static final class BlobUpload extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Blobs")
+        int blobs;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name(PREFIX + "Start")
+    @Label("Start Search")
+    @Category(CATEGORY)
+    static final class Start extends Event {
+        @Label("Host")
+        String host;
+    }
+
+    @Name(PREFIX + "Rpc")
+    @Label("Control RPC")
+    @Category(CATEGORY)
+    static final class Rpc extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Command")
+        int command;
+
+        @Label("Status")
+        int status;
+
+        @Label("Request Size")
+        @DataAmount
+        long requestBytes;
+
+        @Label("Reply Size")
+        @DataAmount
+        long replyBytes;
+    }
+
+    @Name(PREFIX + "BlastFrame")
+    @Label("Blast Frame")
+    @Description("Waiting for and decoding one object from the blast "
+            + "channel")
+    @Category(CATEGORY)
+    static final class BlastFrame extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Decode Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long decodeNanos;
+    }
+
+    @Name(PREFIX + "QueueWait")
+    @Label("Result Queue Wait")
+    @Description("A consumer blocked waiting for the next result")
+    @Category(CATEGORY)
+    static final class QueueWait extends Event {
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+/**
+ * How well one server is keeping up with the rest of a search, as of the
+ * latest statistics.
+ */
+public final class HostHealth {
+    private final String hostname;
+
+    private final double processedRate;
+
+    private final double progress;
+
+    private final long estimatedTimeRemaining;
+
+    private final double blastFrameRate;
+
+    private final LatencySnapshot rpcLatency;
+
+    private final double slowness;
+
+    private final boolean straggler;
+
+    HostHealth(String hostname, double processedRate, double progress,
+            long estimatedTimeRemaining, double blastFrameRate,
+            LatencySnapshot rpcLatency, double slowness, boolean straggler) {
+        this.hostname = hostname;
+        this.processedRate = processedRate;
+        this.progress = progress;
+        this.estimatedTimeRemaining = estimatedTimeRemaining;
+        this.blastFrameRate = blastFrameRate;
+        this.rpcLatency = rpcLatency;
+        this.slowness = slowness;
+        this.straggler = straggler;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Gets the rate at which the server is processing objects, in objects
+     * per second.
+     */
+    public double getProcessedRate() {
+        return processedRate;
+    }
+
+    /**
+     * Gets the fraction of its objects the server has processed.
+     *
+     * @return a value between 0 and 1, or 0 if the total is not known
+     */
+    public double getProgress() {
+        return progress;
+    }
+
+    /**
+     * Estimates the time until the server has processed all its objects.
+     *
+     * @return the estimate in milliseconds, or -1 if it is not known
+     */
+    public long getEstimatedTimeRemaining() {
+        return estimatedTimeRemaining;
+    }
+
+    /**
+     * Gets the rate at which results arrived from the server since the
+     * previous statistics, in results per second.
+     */
+    public double getBlastFrameRate() {
+        return blastFrameRate;
+    }
+
+    /**
+     * Gets the latency of all control RPCs to the server.
+     */
+    public LatencySnapshot getRpcLatency() {
+        return rpcLatency;
+    }
+
+    /**
+     * Gets how much longer the server is expected to take than the median
+     * server.  1 is typical; larger values are slower.  Servers which have
+     * finished have a slowness of 0.
+     */
+    public double getSlowness() {
+        return slowness;
+    }
+
+    /**
+     * Returns true if the server's slowness exceeds the search's straggler
+     * threshold.
+     */
+    public boolean isStraggler() {
+        return straggler;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %.1f/s processed, %.0f%% done, eta %dms, "
+                + "%.1f results/s, slowness %.2f%s", hostname,
+                processedRate, progress * 100, estimatedTimeRemaining,
+                blastFrameRate, slowness, straggler ? " (straggler)" : "");
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Ranks the servers of a search by how long they are expected to take,
+ * using each server's processing rate and progress from the statistics,
+ * its result arrival rate, and its RPC latency.
+ * <p>
+ * A server's slowness is its estimated time remaining divided by the
+ * median over servers which haven't finished.  If the servers don't
+ * report their object totals, the median processing rate divided by the
+ * server's rate is used instead.  Servers whose slowness exceeds the
+ * threshold are stragglers.
+ */
+class HostHealthTracker {
+    private static final double DEFAULT_THRESHOLD = 2.0;
+
+    private static final Comparator<HostHealth> SLOWEST_FIRST =
+            new Comparator<HostHealth>() {
+                public int compare(HostHealth a, HostHealth b) {
+                    int c = Double.compare(b.getSlowness(), a.getSlowness());
+                    if (c != 0) {
+                        return c;
+                    }
+                    return a.getHostname().compareTo(b.getHostname());
+                }
+            };
+
+    private final SearchMetrics metrics;
+
+    private final List<StragglerListener> listeners =
+            new CopyOnWriteArrayList<StragglerListener>();
+
+    private volatile double threshold = Double.parseDouble(
+            System.getProperty(
+                    "edu.cmu.cs.diamond.opendiamond.straggler.threshold",
+                    Double.toString(DEFAULT_THRESHOLD)));
+
+    private List<HostHealth> ranking = Collections.emptyList();
+
+    private final Set<String> stragglers = new HashSet<String>();
+
+    // blast frame counts at the previous update
+    private final Map<String, Long> lastFrames = new HashMap<String, Long>();
+
+    private long lastTime = -1;
+
+    private long lastNanos;
+
+    HostHealthTracker(SearchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setThreshold(double threshold) {
+        if (!(threshold > 1)) {
+            throw new IllegalArgumentException(
+                    "Threshold must be greater than 1");
+        }
+        this.threshold = threshold;
+    }
+
+    double getThreshold() {
+        return threshold;
+    }
+
+    void addListener(StragglerListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(StragglerListener listener) {
+        listeners.remove(listener);
+    }
+
+    synchronized List<HostHealth> getRanking() {
+        return ranking;
+    }
+
+    /**
+     * Updates the ranking from new statistics and notifies listeners of
+     * any changes.  Snapshots older than the last one are ignored.
+     */
+    void update(StatisticsSnapshot snapshot) {
+        List<HostHealth> detected = new ArrayList<HostHealth>();
+        List<HostHealth> recovered = new ArrayList<HostHealth>();
+        synchronized (this) {
+            if (snapshot.getTime() < lastTime) {
+                return;
+            }
+            long now = System.nanoTime();
+            double seconds = lastTime >= 0 ? (now - lastNanos) / 1e9 : 0;
+            lastTime = snapshot.getTime();
+            lastNanos = now;
+
+            Map<String, ServerStatistics> stats = snapshot.getStatistics();
+            int n = stats.size();
+            String[] hosts = stats.keySet().toArray(new String[n]);
+            double[] rates = new double[n];
+            double[] etas = new double[n];
+            double[] progress = new double[n];
+            boolean haveTotals = true;
+            for (int i = 0; i < n; i++) {
+                Map<String, Long> s = stats.get(hosts[i]).getServerStatsMap();
+                long total = get(s, ServerStatistics.TOTAL_OBJECTS);
+                long remaining = total
+                        - get(s, ServerStatistics.PROCESSED_OBJECTS);
+                rates[i] = snapshot.getProcessedRate(hosts[i]);
+                if (total <= 0) {
+                    haveTotals = false;
+                    etas[i] = -1;
+                } else if (remaining <= 0) {
+                    progress[i] = 1;
+                    etas[i] = 0;
+                } else {
+                    progress[i] = 1 - (double) remaining / total;
+                    etas[i] = rates[i] > 0 ? remaining / rates[i]
+                            : Double.POSITIVE_INFINITY;
+                }
+            }
+
+            double[] slowness = haveTotals ? slownessByEta(etas)
+                    : slownessByRate(rates);
+
+            List<HostHealth> result = new ArrayList<HostHealth>(n);
+            double limit = threshold;
+            for (int i = 0; i < n; i++) {
+                String host = hosts[i];
+                HostMetrics hm = metrics.getHost(host);
+                double frameRate = 0;
+                long frames = hm.getBlastFrames();
+                Long last = lastFrames.put(host, frames);
+                if (last != null && seconds > 0) {
+                    frameRate = (frames - last) / seconds;
+                }
+                LatencySnapshot latency = hm.getTotalRpcLatency();
+                boolean straggler = slowness[i] > limit;
+                long eta = etas[i] < 0 || Double.isInfinite(etas[i]) ? -1
+                        : (long) (etas[i] * 1000);
+                HostHealth h = new HostHealth(host, rates[i], progress[i],
+                        eta, frameRate, latency, slowness[i], straggler);
+                result.add(h);
+
+                if (straggler && stragglers.add(host)) {
+                    detected.add(h);
+                } else if (!straggler && stragglers.remove(host)) {
+                    recovered.add(h);
+                }
+            }
+            Collections.sort(result, SLOWEST_FIRST);
+            ranking = Collections.unmodifiableList(result);
+        }
+
+        // outside the lock, so listeners can call back into the search
+        for (StragglerListener l : listeners) {
+            for (HostHealth h : detected) {
+                l.stragglerDetected(h);
+            }
+            for (HostHealth h : recovered) {
+                l.stragglerRecovered(h);
+            }
+        }
+    }
+
+    private static long get(Map<String, Long> stats, String name) {
+        Long value = stats.get(name);
+        return value != null ? value : 0;
+    }
+
+    // Estimated time remaining relative to the median of unfinished hosts
+    private static double[] slownessByEta(double[] etas) {
+        double[] slowness = new double[etas.length];
+        double median = median(etas, true);
+        for (int i = 0; i < etas.length; i++) {
+            if (etas[i] == 0) {
+                slowness[i] = 0;
+            } else if (Double.isInfinite(median)) {
+                // most hosts are stalled; there's no typical pace
+                slowness[i] = 1;
+            } else {
+                slowness[i] = etas[i] / median;
+            }
+        }
+        return slowness;
+    }
+
+    // Median processing rate relative to each host's rate
+    private static double[] slownessByRate(double[] rates) {
+        double[] slowness = new double[rates.length];
+        double median = median(rates, false);
+        for (int i = 0; i < rates.length; i++) {
+            if (median <= 0) {
+                // no progress yet, or no rates until the second update
+                slowness[i] = 1;
+            } else {
+                slowness[i] = rates[i] > 0 ? median / rates[i]
+                        : Double.POSITIVE_INFINITY;
+            }
+        }
+        return slowness;
+    }
+
+    private static double median(double[] values, boolean skipZero) {
+        double[] v = new double[values.length];
+        int n = 0;
+        for (double d : values) {
+            if (!skipZero || d != 0) {
+                v[n++] = d;
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        Arrays.sort(v, 0, n);
+        return n % 2 == 1 ? v[n / 2] : (v[n / 2 - 1] + v[n / 2]) / 2;
+    }
+}
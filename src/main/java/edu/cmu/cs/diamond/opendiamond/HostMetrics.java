@@ -0,0 +1,139 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+final class HostMetrics implements HostMetricsMXBean {
+    private final String hostname;
+
+    private final long created = System.nanoTime();
+
+    private volatile boolean connected;
+
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private final LongAdder bytesSent = new LongAdder();
+
+    private final LongAdder blastFrames = new LongAdder();
+
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    private final ConcurrentMap<Integer, LatencyHistogram> rpcLatency =
+            new ConcurrentHashMap<Integer, LatencyHistogram>();
+
+    HostMetrics(String hostname) {
+        this.hostname = hostname;
+    }
+
+    void connected(long nanos) {
+        connectLatency.record(nanos);
+        connected = true;
+    }
+
+    void disconnected() {
+        connected = false;
+    }
+
+    void received(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void sent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    void blastFrame() {
+        blastFrames.increment();
+    }
+
+    void rpc(int cmd, long nanos) {
+        LatencyHistogram h = rpcLatency.get(cmd);
+        if (h == null) {
+            LatencyHistogram newHist = new LatencyHistogram();
+            h = rpcLatency.putIfAbsent(cmd, newHist);
+            if (h == null) {
+                h = newHist;
+            }
+        }
+        h.record(nanos);
+    }
+
+    // Adds our RPC latencies to the given histograms
+    void addRpcLatency(Map<Integer, LatencyHistogram> totals) {
+        for (Map.Entry<Integer, LatencyHistogram> e : rpcLatency.entrySet()) {
+            LatencyHistogram total = totals.get(e.getKey());
+            if (total == null) {
+                total = new LatencyHistogram();
+                totals.put(e.getKey(), total);
+            }
+            total.add(e.getValue());
+        }
+    }
+
+    // Latency of all RPCs, whatever the command
+    LatencySnapshot getTotalRpcLatency() {
+        LatencyHistogram total = new LatencyHistogram();
+        for (LatencyHistogram h : rpcLatency.values()) {
+            total.add(h);
+        }
+        return total.snapshot();
+    }
+
+    static Map<Integer, LatencySnapshot> snapshot(
+            Map<Integer, LatencyHistogram> histograms) {
+        Map<Integer, LatencySnapshot> result =
+                new HashMap<Integer, LatencySnapshot>();
+        for (Map.Entry<Integer, LatencyHistogram> e : histograms.entrySet()) {
+            result.put(e.getKey(), e.getValue().snapshot());
+        }
+        return result;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBlastFrames() {
+        return blastFrames.sum();
+    }
+
+    public double getBlastFrameRate() {
+        long elapsed = System.nanoTime() - created;
+        return elapsed > 0 ? blastFrames.sum() * 1e9 / elapsed : 0;
+    }
+
+    public LatencySnapshot getConnectLatency() {
+        return connectLatency.snapshot();
+    }
+
+    public Map<Integer, LatencySnapshot> getRpcLatency() {
+        return snapshot(rpcLatency);
+    }
+}
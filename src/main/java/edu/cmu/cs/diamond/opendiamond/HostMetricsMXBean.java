@@ -0,0 +1,51 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.util.Map;
+
+/**
+ * Client-side metrics for the connection to one server in a
+ * {@link Search}.  Registered with the platform MBean server as
+ * <code>edu.cmu.cs.diamond.opendiamond:type=Search,id=N,host=H</code>
+ * while the search is open, and available from
+ * {@link Search#getHostMetrics()}.
+ */
+public interface HostMetricsMXBean {
+    String getHostname();
+
+    boolean isConnected();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getBlastFrames();
+
+    /**
+     * Gets the average number of blast frames received per second since
+     * the connection was opened.
+     */
+    double getBlastFrameRate();
+
+    /**
+     * Gets the time taken to open the connection and configure the search
+     * on the server, including any blob uploads.
+     */
+    LatencySnapshot getConnectLatency();
+
+    /**
+     * Gets RPC latency keyed by RPC command number.
+     */
+    Map<Integer, LatencySnapshot> getRpcLatency();
+}
@@ -0,0 +1,357 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Fetches the images of server objects, as
+ * {@link Util#extractImageFromResultIdentifier} does, and caches them.
+ * <p>
+ * Each object is reexecuted once, asking for both the decoded
+ * <code>_rgb_image.rgbimage</code> attribute and the object data, over
+ * connections kept open per server.  Decoded images are kept in memory up
+ * to a size limit, least recently used first out.  Optionally, the fetched
+ * bytes are also stored compressed in a directory up to a second size
+ * limit, so that images survive being dropped from memory and the
+ * application restarting.  Images are keyed by
+ * {@link ObjectIdentifier}; the filters of the factory don't change them.
+ * <p>
+ * Cached images are shared and must not be modified.
+ */
+public final class ImageFetcher implements Closeable {
+    private static final int MAX_IDLE = Integer.getInteger(
+            "edu.cmu.cs.diamond.opendiamond.imagefetcher.connections", 4);
+
+    private static final String RGB_IMAGE = "_rgb_image.rgbimage";
+
+    // first byte of a disk cache file
+    private static final byte STORED_RGB_IMAGE = 'R';
+
+    private static final byte STORED_DATA = 'D';
+
+    private final ConnectionPool pool;
+
+    private final Set<String> attributes = new HashSet<String>();
+
+    private final long maxMemoryBytes;
+
+    // null if there is no disk cache
+    private final DiskCache disk;
+
+    // access-ordered, so the first entries are the least recently used
+    private final LinkedHashMap<ObjectIdentifier, BufferedImage> memory =
+            new LinkedHashMap<ObjectIdentifier, BufferedImage>(16, 0.75f,
+                    true);
+
+    private long memoryBytes;
+
+    private final Map<ObjectIdentifier, CompletableFuture<BufferedImage>> inFlight =
+            new ConcurrentHashMap<ObjectIdentifier, CompletableFuture<BufferedImage>>();
+
+    /**
+     * Creates an image fetcher with only a memory cache.
+     *
+     * @param factory
+     *            the factory whose servers and filters to use
+     * @param maxMemoryBytes
+     *            the most bytes of decoded images to keep in memory
+     */
+    public ImageFetcher(SearchFactory factory, long maxMemoryBytes) {
+        this(factory, maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * Creates an image fetcher with a memory cache and a disk cache.
+     *
+     * @param factory
+     *            the factory whose servers and filters to use
+     * @param maxMemoryBytes
+     *            the most bytes of decoded images to keep in memory
+     * @param diskDirectory
+     *            the directory to store fetched images in, or
+     *            <code>null</code> for no disk cache
+     * @param maxDiskBytes
+     *            the most bytes to store in the directory
+     */
+    public ImageFetcher(SearchFactory factory, long maxMemoryBytes,
+            File diskDirectory, long maxDiskBytes) {
+        pool = new ConnectionPool(factory.getCookieMap(), factory
+                .getReexecutionFilters(), MAX_IDLE);
+        attributes.add(RGB_IMAGE);
+        attributes.add("");
+        this.maxMemoryBytes = maxMemoryBytes;
+        if (diskDirectory != null) {
+            disk = new DiskCache(diskDirectory, maxDiskBytes);
+        } else {
+            disk = null;
+        }
+    }
+
+    /**
+     * Gets the image of an object, from the cache if possible.
+     * Concurrent requests for the same object share one fetch.
+     *
+     * @param identifier
+     *            the object
+     * @return the image, or <code>null</code> if no image can be decoded
+     * @throws IOException
+     *             if an IO error occurs while retrieving the object
+     */
+    public BufferedImage getImage(ObjectIdentifier identifier)
+            throws IOException {
+        synchronized (memory) {
+            BufferedImage img = memory.get(identifier);
+            if (img != null) {
+                return img;
+            }
+        }
+
+        CompletableFuture<BufferedImage> f =
+                new CompletableFuture<BufferedImage>();
+        CompletableFuture<BufferedImage> existing = inFlight.putIfAbsent(
+                identifier, f);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            BufferedImage img = load(identifier);
+            f.complete(img);
+            return img;
+        } catch (IOException e) {
+            f.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            f.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(identifier, f);
+        }
+    }
+
+    private static BufferedImage await(CompletableFuture<BufferedImage> f)
+            throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            IOException e2 = new IOException();
+            e2.initCause(e.getCause());
+            throw e2;
+        }
+    }
+
+    private BufferedImage load(ObjectIdentifier identifier)
+            throws IOException {
+        String fileName = null;
+        if (disk != null) {
+            fileName = diskFileName(identifier);
+            BufferedImage img = readDisk(fileName);
+            if (img != null) {
+                remember(identifier, img);
+                return img;
+            }
+        }
+
+        Map<String, byte[]> attrs = reexecute(identifier);
+        byte[] rgbimage = attrs.get(RGB_IMAGE);
+        byte[] data = attrs.get("");
+        BufferedImage img;
+        if (rgbimage != null) {
+            img = Util.decodeRGBImage(rgbimage, null);
+        } else if (data != null) {
+            img = Util.decodeImageData(data);
+        } else {
+            return null;
+        }
+        if (img == null) {
+            return null;
+        }
+
+        remember(identifier, img);
+        if (fileName != null) {
+            if (rgbimage != null) {
+                writeDisk(fileName, STORED_RGB_IMAGE, rgbimage);
+            } else {
+                writeDisk(fileName, STORED_DATA, data);
+            }
+        }
+        return img;
+    }
+
+    private Map<String, byte[]> reexecute(ObjectIdentifier identifier)
+            throws IOException {
+        String host = identifier.getHostname();
+        String objID = identifier.getObjectID();
+        Map<String, byte[]> attrs = null;
+        Connection conn = pool.borrowIdle(host);
+        boolean done = false;
+        if (conn != null) {
+            try {
+                attrs = conn.reexecute(objID, attributes);
+                done = true;
+            } catch (IOException e) {
+                // the server may have dropped the idle connection; try
+                // again on a new one
+            }
+        }
+        if (!done) {
+            conn = pool.connect(host);
+            attrs = conn.reexecute(objID, attributes);
+        }
+        pool.release(host, conn);
+        if (attrs == null) {
+            throw new IOException("Object " + objID + " not found on "
+                    + host);
+        }
+        return attrs;
+    }
+
+    private void remember(ObjectIdentifier identifier, BufferedImage img) {
+        long size = sizeOf(img);
+        if (size > maxMemoryBytes) {
+            return;
+        }
+        synchronized (memory) {
+            BufferedImage old = memory.put(identifier, img);
+            if (old != null) {
+                memoryBytes -= sizeOf(old);
+            }
+            memoryBytes += size;
+            Iterator<BufferedImage> it = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+                BufferedImage evicted = it.next();
+                if (evicted == img) {
+                    continue;
+                }
+                memoryBytes -= sizeOf(evicted);
+                it.remove();
+            }
+        }
+    }
+
+    private static long sizeOf(BufferedImage img) {
+        DataBuffer b = img.getRaster().getDataBuffer();
+        return (long) b.getSize() * b.getNumBanks()
+                * DataBuffer.getDataTypeSize(b.getDataType()) / 8;
+    }
+
+    private static String diskFileName(ObjectIdentifier identifier) {
+        String key = identifier.getHostname() + "\0"
+                + identifier.getDeviceName() + "\0"
+                + identifier.getObjectID();
+        return new Signature(key.getBytes(StandardCharsets.UTF_8))
+                .asString();
+    }
+
+    private BufferedImage readDisk(String fileName) {
+        byte[] stored = disk.get(fileName);
+        if (stored == null) {
+            return null;
+        }
+        try {
+            BufferedImage img = decodeStored(stored);
+            if (img != null) {
+                return img;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        // corrupt
+        disk.remove(fileName);
+        return null;
+    }
+
+    private static BufferedImage decodeStored(byte[] stored)
+            throws IOException {
+        if (stored.length == 0) {
+            return null;
+        }
+        InputStream in = new ByteArrayInputStream(stored, 1,
+                stored.length - 1);
+        switch (stored[0]) {
+        case STORED_RGB_IMAGE:
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream inflater = new InflaterInputStream(in);
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = inflater.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return Util.decodeRGBImage(out.toByteArray(), null);
+        case STORED_DATA:
+            return Util.decodeImageData(Arrays.copyOfRange(stored, 1,
+                    stored.length));
+        default:
+            return null;
+        }
+    }
+
+    private void writeDisk(String fileName, byte type, byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(type);
+        if (type == STORED_RGB_IMAGE) {
+            // the padding byte of each pixel compresses to nearly nothing
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DeflaterOutputStream dout = new DeflaterOutputStream(out,
+                    deflater, 65536);
+            try {
+                dout.write(bytes);
+                dout.finish();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            } finally {
+                deflater.end();
+            }
+        } else {
+            // already in a compressed image format
+            out.write(bytes, 0, bytes.length);
+        }
+        disk.put(fileName, out.toByteArray());
+    }
+
+    /**
+     * Closes the connections kept open to servers.  Cached images can
+     * still be fetched afterward, but objects not cached are fetched over
+     * a new connection each time.
+     */
+    public void close() {
+        pool.close();
+    }
+}
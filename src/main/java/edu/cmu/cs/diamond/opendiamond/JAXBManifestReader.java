@@ -0,0 +1,75 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import edu.cmu.cs.diamond.opendiamond.bundle.PredicateSpec;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import java.io.InputStream;
+
+/**
+ * Reads a bundle manifest through JAXB.  The JAXB context is only created
+ * when this class is first used.
+ */
+class JAXBManifestReader {
+    private static final JAXBContext jaxbContext;
+
+    static {
+        JAXBContext ctx = null;
+        try {
+            ctx = JAXBContext.newInstance(PredicateSpec.class);
+        } catch (JAXBException e) {
+            e.printStackTrace();
+        }
+        // commit
+        jaxbContext = ctx;
+    }
+
+    private final PredicateSpec spec;
+
+    private final BundleType type;
+
+    public JAXBManifestReader(InputStream in, Schema schema)
+            throws BundleFormatException {
+        try {
+            Unmarshaller u = jaxbContext.createUnmarshaller();
+            u.setSchema(schema);
+            StreamSource source = new StreamSource(in);
+            JAXBElement<PredicateSpec> element = u.unmarshal(source,
+                    PredicateSpec.class);
+            this.spec = element.getValue();
+            this.type = BundleType.fromTag(element.getName()
+                    .getLocalPart());
+        } catch (JAXBException e) {
+            String msg = e.getMessage();
+            Throwable linked = e.getLinkedException();
+            if (linked != null) {
+                msg = linked.getMessage();
+            }
+            throw new BundleFormatException(msg);
+        }
+    }
+
+    public PredicateSpec getSpec() {
+        return spec;
+    }
+
+    public BundleType getType() {
+        return type;
+    }
+}
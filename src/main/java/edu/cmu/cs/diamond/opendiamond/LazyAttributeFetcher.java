@@ -0,0 +1,204 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Fetches the attributes of results which were left out of the search's
+ * push attributes, by reexecuting the objects on their servers.
+ * <p>
+ * Connections are set up once per server and reused.  Concurrent requests
+ * for the same result share one reexecution, and prefetched results are
+ * reexecuted in pipelined batches.  After the search is closed, fetches
+ * still work but use a new connection each time.
+ */
+class LazyAttributeFetcher {
+    private static final int MAX_IDLE = Integer.getInteger(
+            "edu.cmu.cs.diamond.opendiamond.lazyattributes.connections", 4);
+
+    private static final int PIPELINE_WINDOW = 16;
+
+    private final ExecutorService executor;
+
+    private final Set<String> attributes;
+
+    private final Map<Result, CompletableFuture<Void>> inFlight =
+            new ConcurrentHashMap<Result, CompletableFuture<Void>>();
+
+    private final ConnectionPool pool;
+
+    LazyAttributeFetcher(ExecutorService executor, CookieMap cookieMap,
+            List<Filter> filters, Set<String> attributes) {
+        this.executor = executor;
+        pool = new ConnectionPool(cookieMap, filters, MAX_IDLE);
+        if (attributes == null || attributes.isEmpty()) {
+            this.attributes = null;
+        } else {
+            this.attributes = attributes;
+        }
+    }
+
+    // Returns whether the result may have the named attribute once fetched
+    boolean provides(String name) {
+        return attributes == null || attributes.contains(name);
+    }
+
+    // Fetches the lazy attributes of a result into it, or waits for a
+    // fetch already under way
+    void fetch(Result result) throws IOException, InterruptedException {
+        CompletableFuture<Void> f = new CompletableFuture<Void>();
+        CompletableFuture<Void> existing = inFlight.putIfAbsent(result, f);
+        if (existing != null) {
+            await(existing);
+            return;
+        }
+
+        String host = result.getObjectIdentifier().getHostname();
+        List<Result> one = new ArrayList<Result>(1);
+        one.add(result);
+        ReexecuteHandler handler = new ReexecuteHandler() {
+            public void reexecuted(Result r, Map<String, byte[]> attrs) {
+                r.addLazyAttributes(attrs);
+            }
+        };
+        IOException failure = null;
+        try {
+            Connection conn = pool.borrowIdle(host);
+            if (conn != null) {
+                try {
+                    conn.reexecuteAll(one, attributes, 1, handler);
+                    pool.release(host, conn);
+                    return;
+                } catch (IOException e) {
+                    // the server may have dropped the idle connection;
+                    // try again on a new one
+                }
+            }
+            conn = pool.connect(host);
+            conn.reexecuteAll(one, attributes, 1, handler);
+            pool.release(host, conn);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException();
+            throw e;
+        } finally {
+            finish(result, f, failure);
+        }
+    }
+
+    // Starts fetching the lazy attributes of results in the background
+    void prefetch(Collection<Result> results) {
+        Map<String, List<Result>> byHost =
+                new LinkedHashMap<String, List<Result>>();
+        final Map<Result, CompletableFuture<Void>> mine =
+                new HashMap<Result, CompletableFuture<Void>>();
+        for (Result r : results) {
+            if (!r.hasLazyAttributes()) {
+                continue;
+            }
+            CompletableFuture<Void> f = new CompletableFuture<Void>();
+            if (inFlight.putIfAbsent(r, f) != null) {
+                continue;
+            }
+            mine.put(r, f);
+            String host = r.getObjectIdentifier().getHostname();
+            List<Result> l = byHost.get(host);
+            if (l == null) {
+                l = new ArrayList<Result>();
+                byHost.put(host, l);
+            }
+            l.add(r);
+        }
+
+        for (Map.Entry<String, List<Result>> e : byHost.entrySet()) {
+            final String host = e.getKey();
+            final List<Result> hostResults = e.getValue();
+            executor.execute(new Runnable() {
+                public void run() {
+                    IOException failure = null;
+                    try {
+                        Connection conn = pool.borrowIdle(host);
+                        if (conn == null) {
+                            conn = pool.connect(host);
+                        }
+                        conn.reexecuteAll(hostResults, attributes,
+                                PIPELINE_WINDOW, new ReexecuteHandler() {
+                                    public void reexecuted(Result r,
+                                            Map<String, byte[]> attrs) {
+                                        r.addLazyAttributes(attrs);
+                                        finish(r, mine.get(r), null);
+                                    }
+                                });
+                        pool.release(host, conn);
+                    } catch (IOException e) {
+                        failure = e;
+                    } catch (InterruptedException e) {
+                        failure = new InterruptedIOException();
+                    }
+                    // results the server didn't return, or not reached
+                    for (Result r : hostResults) {
+                        finish(r, mine.get(r), failure);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish(Result result, CompletableFuture<Void> f,
+            IOException failure) {
+        if (f.isDone()) {
+            return;
+        }
+        inFlight.remove(result, f);
+        if (failure == null) {
+            // also marks objects the server no longer has as fetched
+            result.addLazyAttributes(
+                    Collections.<String, byte[]> emptyMap());
+            f.complete(null);
+        } else {
+            f.completeExceptionally(failure);
+        }
+    }
+
+    private static void await(CompletableFuture<Void> f) throws IOException,
+            InterruptedException {
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            IOException e2 = new IOException();
+            e2.initCause(e.getCause());
+            throw e2;
+        }
+    }
+
+    // Closes the idle connections; later fetches don't pool connections
+    void close() {
+        pool.close();
+    }
+}
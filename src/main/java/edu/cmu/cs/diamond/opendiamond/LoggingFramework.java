@@ -71,6 +71,14 @@ abstract class LoggingFramework {
 
     public abstract void shutdown(Throwable cause);
 
+    // Writes out any buffered log records
+    public void flush() {
+    }
+
+    // Records that some results were not logged
+    public void logDroppedResults(long count) {
+    }
+
     public static LoggingFramework createLoggingFramework(String message)
             throws IOException {
         boolean enabled = Boolean.parseBoolean(System.getProperty(
@@ -78,7 +86,18 @@ abstract class LoggingFramework {
                 "false"));
 
         if (enabled) {
-            return new XMLLogger(message);
+            boolean async = Boolean.getBoolean(
+                    "edu.cmu.cs.diamond.opendiamond.loggingframework.async");
+            String format = System.getProperty(
+                    "edu.cmu.cs.diamond.opendiamond.loggingframework.format",
+                    "xml");
+            LoggingFramework logger;
+            if (format.equals("binary")) {
+                logger = new BinaryLogger(message);
+            } else {
+                logger = new XMLLogger(message, async);
+            }
+            return async ? new AsyncLogger(logger) : logger;
         } else {
             return NULL_LOGGER;
         }
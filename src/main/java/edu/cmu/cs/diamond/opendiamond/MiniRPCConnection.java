@@ -12,6 +12,7 @@
 
 package edu.cmu.cs.diamond.opendiamond;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -27,10 +28,17 @@ final class MiniRPCConnection {
 
     final private DataOutputStream out;
 
-    public MiniRPCConnection(Socket socket) throws IOException {
+    final private HostMetrics metrics;
+
+    public MiniRPCConnection(Socket socket, HostMetrics metrics)
+            throws IOException {
         this.socket = socket;
+        this.metrics = metrics;
         this.in = new DataInputStream(socket.getInputStream());
-        this.out = new DataOutputStream(socket.getOutputStream());
+        // buffered so that each message goes out in one write, rather
+        // than as a header trickling out ahead of the data
+        this.out = new DataOutputStream(new BufferedOutputStream(socket
+                .getOutputStream()));
     }
 
     private void send(long sequence, int status, int cmd, byte data[])
@@ -44,22 +52,28 @@ final class MiniRPCConnection {
         // System.out.println("sending: " + sequence + " " + status + " " + cmd
         // + " (" + data.length + ") " + Arrays.toString(data));
 
-        // write header
-        out.writeInt((int) sequence);
-        out.writeInt(status);
-        out.writeInt(cmd);
-        out.writeInt(data.length);
+        synchronized (out) {
+            // write header
+            out.writeInt((int) sequence);
+            out.writeInt(status);
+            out.writeInt(cmd);
+            out.writeInt(data.length);
+
+            // write data
+            out.write(data);
+            out.flush();
+        }
 
-        // write data
-        out.write(data);
+        metrics.sent(16 + data.length);
     }
 
-    public void sendRequest(int cmd, byte data[]) throws IOException {
+    public long sendRequest(int cmd, byte data[]) throws IOException {
         if (cmd <= 0) {
             throw new IllegalArgumentException("cmd must be positive");
         }
-        send(nextSequence.getAndIncrement() & 0xFFFFFFFFL,
-                MiniRPCMessage.MINIRPC_PENDING, cmd, data);
+        long sequence = nextSequence.getAndIncrement() & 0xFFFFFFFFL;
+        send(sequence, MiniRPCMessage.MINIRPC_PENDING, cmd, data);
+        return sequence;
     }
 
     public MiniRPCMessage receive() throws IOException {
@@ -69,6 +83,7 @@ final class MiniRPCConnection {
         int datalen = in.readInt();
 
         byte data[] = readXDRData(datalen);
+        metrics.received(16 + XDRGetter.roundup(datalen));
 
         return new MiniRPCMessage(sequence, status, cmd, data);
     }
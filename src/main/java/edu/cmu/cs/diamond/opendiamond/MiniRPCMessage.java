@@ -34,6 +34,8 @@ final class MiniRPCMessage {
 
     private final XDRGetter data;
 
+    private final int dataLength;
+
     MiniRPCMessage(long sequence, int status, int cmd, byte[] data) {
         if ((sequence < 0) || (sequence > 0xFFFFFFFFL)) {
             throw new IllegalArgumentException(
@@ -44,6 +46,7 @@ final class MiniRPCMessage {
         this.sequence = sequence;
         this.status = status;
         this.cmd = cmd;
+        this.dataLength = data.length;
         this.data = new XDRGetter(new DataInputStream(new ByteArrayInputStream(
                 data)));
     }
@@ -64,6 +67,10 @@ final class MiniRPCMessage {
         return data;
     }
 
+    public int getDataLength() {
+        return dataLength;
+    }
+
     @Override
     public String toString() {
         return "sequence: " + sequence + ", status: " + statusToString(status)
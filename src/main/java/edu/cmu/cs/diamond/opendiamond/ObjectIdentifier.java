@@ -12,6 +12,8 @@
 
 package edu.cmu.cs.diamond.opendiamond;
 
+import java.util.Objects;
+
 /**
  * Opaque identifier for a server object.
  */
@@ -40,4 +42,20 @@ public class ObjectIdentifier {
     public String getObjectID() {
         return objectID;
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(objectID, deviceName, hostname);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ObjectIdentifier)) {
+            return false;
+        }
+        ObjectIdentifier other = (ObjectIdentifier) obj;
+        return Objects.equals(objectID, other.objectID)
+                && Objects.equals(deviceName, other.deviceName)
+                && Objects.equals(hostname, other.hostname);
+    }
 }
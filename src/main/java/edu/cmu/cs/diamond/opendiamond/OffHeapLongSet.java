@@ -0,0 +1,115 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Open-addressing set of <code>long</code>s kept in a direct buffer, with
+ * linear probing.  The table doubles as it fills, up to a maximum size;
+ * after that, values not already present are no longer stored.  Not
+ * thread-safe.
+ */
+final class OffHeapLongSet implements ResultDeduplicator.IdSet {
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    // 1 GB, so that byte offsets fit in an int
+    private static final int MAX_CAPACITY = 1 << 27;
+
+    private static final double LOAD_FACTOR = 0.7;
+
+    // 0 marks an empty slot, so it is stored as this instead
+    private static final long ZERO = 0x9e3779b97f4a7c15L;
+
+    private final int maxCapacity;
+
+    private ByteBuffer table;
+
+    private int mask;
+
+    private int size;
+
+    private int limit;
+
+    private boolean saturated;
+
+    OffHeapLongSet(long maxBytes) {
+        long cap = Math.min(Long.highestOneBit(Math.max(maxBytes / 8, 1)),
+                MAX_CAPACITY);
+        maxCapacity = (int) cap;
+        allocate(Math.min(INITIAL_CAPACITY, maxCapacity));
+    }
+
+    private void allocate(int capacity) {
+        table = ByteBuffer.allocateDirect(capacity * 8).order(
+                ByteOrder.nativeOrder());
+        mask = capacity - 1;
+        size = 0;
+        limit = (int) (capacity * LOAD_FACTOR);
+    }
+
+    public boolean add(long value) {
+        if (value == 0) {
+            value = ZERO;
+        }
+        int slot = find(value);
+        if (table.getLong(slot << 3) == value) {
+            return false;
+        }
+        if (size >= limit) {
+            if (mask + 1 >= maxCapacity) {
+                saturated = true;
+                return true;
+            }
+            grow();
+            slot = find(value);
+        }
+        table.putLong(slot << 3, value);
+        size++;
+        return true;
+    }
+
+    // Gets the slot holding the value, or the empty slot where it belongs
+    private int find(long value) {
+        int slot = (int) (value ^ (value >>> 32)) & mask;
+        while (true) {
+            long v = table.getLong(slot << 3);
+            if (v == value || v == 0) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        ByteBuffer old = table;
+        int oldCapacity = mask + 1;
+        allocate(oldCapacity * 2);
+        for (int i = 0; i < oldCapacity; i++) {
+            long v = old.getLong(i << 3);
+            if (v != 0) {
+                table.putLong(find(v) << 3, v);
+                size++;
+            }
+        }
+    }
+
+    public long getMemoryUsage() {
+        return table.capacity();
+    }
+
+    public boolean isSaturated() {
+        return saturated;
+    }
+}
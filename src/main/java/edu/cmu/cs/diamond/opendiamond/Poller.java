@@ -0,0 +1,90 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a task against a search at a fixed rate on a background thread,
+ * such as fetching statistics so that callers can read the latest
+ * {@link StatisticsSnapshot} without waiting for the servers.  Polling
+ * ends when stopped or when the task throws an IOException, which means
+ * the search has been closed.
+ */
+class Poller {
+    interface Task {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private final Task task;
+
+    private final long intervalNanos;
+
+    private final Thread thread;
+
+    private boolean stopped;
+
+    Poller(String name, long interval, TimeUnit unit, Task task) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        this.task = task;
+        this.intervalNanos = unit.toNanos(interval);
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                pollLoop();
+            }
+        }, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Doesn't interrupt the thread: an interrupted poll would release the
+    // RPC lock while replies are still outstanding.
+    synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    // Sleeps until the given time, returning false if stopped
+    private synchronized boolean sleepUntil(long deadline)
+            throws InterruptedException {
+        long remaining;
+        while (!stopped && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return !stopped;
+    }
+
+    private void pollLoop() {
+        long next = System.nanoTime();
+        try {
+            while (sleepUntil(next)) {
+                task.run();
+
+                // keep a steady rate unless a poll overruns the interval
+                next = Math.max(next + intervalNanos, System.nanoTime());
+            }
+        } catch (InterruptedException e) {
+            // nobody else interrupts this thread
+        } catch (IOException e) {
+            // the search has been closed, either by the failure or by
+            // the caller
+        }
+    }
+}
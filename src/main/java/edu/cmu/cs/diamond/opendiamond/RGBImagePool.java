@@ -0,0 +1,147 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of pixel arrays for decoding RGB images, so that an application
+ * decoding many images doesn't allocate a new raster for each.
+ * <p>
+ * Arrays are kept in buckets by size, each bucket holding arrays a
+ * quarter of a power of two apart, so images of similar sizes share
+ * arrays with at most 25% of each array unused.  Images from
+ * {@link Util#extractImageFromResult(Result, RGBImagePool)} are backed by
+ * pooled arrays; once an application is done with such an image it may
+ * return the array with {@link #release(BufferedImage)}.  An image must
+ * not be used after it is released, nor released twice.
+ */
+public final class RGBImagePool {
+    private static final DirectColorModel RGB_MODEL = new DirectColorModel(
+            24, 0xFF0000, 0xFF00, 0xFF);
+
+    private static final int[] RGB_MASKS = { 0xFF0000, 0xFF00, 0xFF };
+
+    private final int maxPerBucket;
+
+    private final Map<Integer, Deque<int[]>> buckets =
+            new HashMap<Integer, Deque<int[]>>();
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxPerBucket
+     *            the most arrays to keep of each size
+     */
+    public RGBImagePool(int maxPerBucket) {
+        if (maxPerBucket < 1) {
+            throw new IllegalArgumentException(
+                    "Bucket size must be positive");
+        }
+        this.maxPerBucket = maxPerBucket;
+    }
+
+    // Rounds a pixel count up to its bucket size
+    private static int bucketSize(int pixels) {
+        if (pixels <= 4) {
+            return 4;
+        }
+        int step = Integer.highestOneBit(pixels) >>> 2;
+        long size = ((long) pixels + step - 1) / step * step;
+        if (size > Integer.MAX_VALUE) {
+            return pixels;
+        }
+        return (int) size;
+    }
+
+    // Gets a TYPE_INT_RGB compatible image whose pixels are backed by a
+    // pooled array; the pixel contents are undefined
+    BufferedImage acquire(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Bad image size " + width
+                    + "x" + height);
+        }
+        long pixels = (long) width * height;
+        if (pixels > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image too large: " + width
+                    + "x" + height);
+        }
+        int size = bucketSize((int) pixels);
+        int[] data = null;
+        synchronized (buckets) {
+            Deque<int[]> d = buckets.get(size);
+            if (d != null) {
+                data = d.poll();
+            }
+        }
+        if (data == null) {
+            data = new int[size];
+        }
+
+        DataBufferInt buffer = new DataBufferInt(data, (int) pixels);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width,
+                height, width, RGB_MASKS, new Point(0, 0));
+        return new BufferedImage(RGB_MODEL, raster, false, null);
+    }
+
+    /**
+     * Returns the pixel array of an image to the pool.  Images not backed
+     * by a single <code>int</code> array of a pooled size are ignored.
+     *
+     * @param image
+     *            the image, which must not be used afterward
+     */
+    public void release(BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (!(buffer instanceof DataBufferInt)
+                || buffer.getNumBanks() != 1) {
+            return;
+        }
+        int[] data = ((DataBufferInt) buffer).getData();
+        if (data.length != bucketSize(data.length)) {
+            return;
+        }
+        synchronized (buckets) {
+            Deque<int[]> d = buckets.get(data.length);
+            if (d == null) {
+                d = new ArrayDeque<int[]>();
+                buckets.put(data.length, d);
+            }
+            if (d.size() < maxPerBucket) {
+                d.push(data);
+            }
+        }
+    }
+
+    /**
+     * Drops all pooled arrays.
+     */
+    public void clear() {
+        synchronized (buckets) {
+            buckets.clear();
+        }
+    }
+}
@@ -46,9 +46,21 @@ class RPC implements Callable<MiniRPCReply> {
     }
 
     public MiniRPCReply doRPC() throws IOException {
+        FlightEvents.Rpc event = new FlightEvents.Rpc();
+        event.begin();
+        long start = System.nanoTime();
         connection.sendControlRequest(cmd, data);
         MiniRPCReply reply = new MiniRPCReply(connection.receiveControl(),
                 hostname);
+        connection.getMetrics().rpc(cmd, System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.host = hostname;
+            event.command = cmd;
+            event.status = reply.getMessage().getStatus();
+            event.requestBytes = data.length;
+            event.replyBytes = reply.getMessage().getDataLength();
+            event.commit();
+        }
 
         // System.out.println(reply);
 
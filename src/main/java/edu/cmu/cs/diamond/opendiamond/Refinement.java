@@ -0,0 +1,299 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-evaluates results already received from a search against a refined
+ * filter list, so that narrowing a search does not mean starting it over.
+ * <p>
+ * Only the filters which are new or changed, and the filters they depend
+ * on, are run, and only on the objects the application already has.  Each
+ * server is sent its objects over a connection of its own, with several
+ * requests outstanding at once.  Results which pass the new filters are
+ * returned with their old attributes merged with the new ones.
+ * <p>
+ * Optionally a full search with the refined filters runs at the same
+ * time, to find objects not seen before; objects which were already
+ * received are not returned from it again.
+ * <p>
+ * Obtain a refinement from {@link SearchFactory#refine}.  It must be
+ * closed when no longer needed.
+ */
+public final class Refinement implements Closeable {
+    private static final int WINDOW = Integer.getInteger(
+            "edu.cmu.cs.diamond.opendiamond.refinement.window", 16);
+
+    private static final int QUEUE_SIZE = 256;
+
+    private static final Object DONE = new Object();
+
+    // wakes a consumer blocked in getNextResult() when closed
+    private static final Object CLOSED = new Object();
+
+    private final BlockingQueue<Object> queue =
+            new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+
+    private final List<Filter> filters;
+
+    private final Set<String> attributes;
+
+    private final Set<String> received = new HashSet<String>();
+
+    private final Set<Connection> connections = ConcurrentHashMap
+            .newKeySet();
+
+    private final Search search;
+
+    private Future<?> pump;
+
+    private int running;
+
+    private volatile boolean closed;
+
+    Refinement(ExecutorService executor, CookieMap cookieMap,
+            List<Filter> filters, Collection<Result> results,
+            Set<String> desiredAttributes, Search search)
+            throws IOException {
+        this.filters = filters;
+        this.search = search;
+
+        if (desiredAttributes == null || desiredAttributes.isEmpty()) {
+            attributes = null;
+        } else {
+            attributes = new HashSet<String>(desiredAttributes);
+            for (Filter f : filters) {
+                attributes.add(ScoredResultStore.getScoreAttribute(
+                        f.getName()));
+            }
+        }
+
+        Map<String, List<Result>> byHost =
+                new LinkedHashMap<String, List<Result>>();
+        for (Result r : results) {
+            ObjectIdentifier id = r.getObjectIdentifier();
+            received.add(key(id));
+            List<Result> l = byHost.get(id.getHostname());
+            if (l == null) {
+                if (cookieMap.get(id.getHostname()) == null) {
+                    throw new IOException("No cookie found for host "
+                            + id.getHostname());
+                }
+                l = new ArrayList<Result>();
+                byHost.put(id.getHostname(), l);
+            }
+            l.add(r);
+        }
+
+        running = byHost.size() + (search != null ? 1 : 0);
+        for (Map.Entry<String, List<Result>> e : byHost.entrySet()) {
+            final String host = e.getKey();
+            final List<Cookie> cookies = cookieMap.get(host);
+            final List<Result> hostResults = e.getValue();
+            executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    try {
+                        refineHost(host, cookies, hostResults);
+                    } catch (IOException e) {
+                        emit(e);
+                    } finally {
+                        emit(DONE);
+                    }
+                    return null;
+                }
+            });
+        }
+        if (search != null) {
+            pump = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    try {
+                        pumpSearch();
+                    } catch (IOException e) {
+                        emit(e);
+                    } catch (InterruptedException e) {
+                        // closed
+                    } finally {
+                        emit(DONE);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    private static String key(ObjectIdentifier id) {
+        return id.getHostname() + "\0" + id.getObjectID();
+    }
+
+    private void refineHost(final String host, List<Cookie> cookies,
+            List<Result> results) throws IOException, InterruptedException {
+        if (filters.isEmpty()) {
+            for (Result r : results) {
+                emit(r);
+            }
+            return;
+        }
+
+        Connection conn = Connection.createConnection(host, cookies,
+                filters);
+        connections.add(conn);
+        try {
+            if (closed) {
+                return;
+            }
+            conn.reexecuteAll(results, attributes, WINDOW,
+                    new ReexecuteHandler() {
+                        public void reexecuted(Result old,
+                                Map<String, byte[]> attrs)
+                                throws InterruptedException {
+                            if (passes(attrs)) {
+                                emit(merge(old, attrs, host));
+                            }
+                        }
+                    });
+        } finally {
+            connections.remove(conn);
+            conn.close();
+        }
+    }
+
+    private boolean passes(Map<String, byte[]> attrs) {
+        for (Filter f : filters) {
+            double score = ScoredResultStore.parseScore(attrs
+                    .get(ScoredResultStore.getScoreAttribute(f.getName())));
+            if (score < f.getMinScore() || score > f.getMaxScore()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Result merge(Result old, Map<String, byte[]> attrs,
+            String host) {
+        Map<String, byte[]> merged = new HashMap<String, byte[]>();
+        for (String k : old.getKeys()) {
+            merged.put(k, old.getUnrecordedValue(k));
+        }
+        merged.putAll(attrs);
+        return new Result(merged, host);
+    }
+
+    private void pumpSearch() throws IOException, InterruptedException {
+        Result r;
+        while (!closed && (r = search.getNextResult()) != null) {
+            if (!received.contains(key(r.getObjectIdentifier()))) {
+                emit(r);
+            }
+        }
+    }
+
+    private void emit(Object o) throws InterruptedException {
+        while (!closed) {
+            if (queue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the next result which passes the refined filters.  Results from
+     * refining the old results and from the full search are interleaved.
+     *
+     * @return the next result, or <code>null</code> when there are no more
+     * @throws IOException
+     *             if an IO error occurs, in which case the refinement is
+     *             closed
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public Result getNextResult() throws IOException, InterruptedException {
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    throw new SearchClosedException();
+                }
+                if (running == 0) {
+                    return null;
+                }
+            }
+            Object o = queue.take();
+            if (o == CLOSED) {
+                // leave it for any other blocked consumer
+                queue.offer(CLOSED);
+            } else if (o == DONE) {
+                synchronized (this) {
+                    running--;
+                }
+            } else if (o instanceof IOException) {
+                close();
+                IOException e = new IOException();
+                e.initCause((IOException) o);
+                throw e;
+            } else {
+                return (Result) o;
+            }
+        }
+    }
+
+    /**
+     * Gets the full search started with the refined filters, for example
+     * to read its statistics.  Its results are returned by
+     * {@link #getNextResult()}, not read directly.
+     *
+     * @return the search, or <code>null</code> if none was started
+     */
+    public Search getSearch() {
+        return search;
+    }
+
+    /**
+     * Stops the refinement and the full search, if any.  A thread waiting
+     * in {@link #getNextResult()} throws a
+     * <code>SearchClosedException</code>.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        for (Connection conn : connections) {
+            conn.close();
+        }
+        if (search != null) {
+            // the pump may be waiting for results which will never come
+            pump.cancel(true);
+            search.close();
+        }
+        queue.clear();
+        queue.offer(CLOSED);
+    }
+}
@@ -12,8 +12,11 @@
 
 package edu.cmu.cs.diamond.opendiamond;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -27,6 +30,14 @@ public class Result {
 
     private final ObjectIdentifier objectIdentifier;
 
+    // set while attributes left out of the search are still to be fetched
+    private volatile LazyAttributeFetcher fetcher;
+
+    // set if fetching the lazy attributes failed, so it isn't retried
+    private volatile IOException fetchError;
+
+    private volatile AttributeProfile profile;
+
     public Result(ObjectIdentifier objectIdentifier) {
         this.objectIdentifier = objectIdentifier;
     }
@@ -48,15 +59,108 @@ public class Result {
         return getValue("");
     }
 
+    void setLazyAttributeFetcher(LazyAttributeFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    void setAttributeProfile(AttributeProfile profile) {
+        this.profile = profile;
+    }
+
+    boolean hasLazyAttributes() {
+        return fetcher != null && fetchError == null;
+    }
+
+    void addLazyAttributes(Map<String, byte[]> attrs) {
+        synchronized (attributes) {
+            attributes.putAll(attrs);
+        }
+        fetcher = null;
+    }
+
     /**
-     * Gets the value associated with a particular key.
+     * Gets the value associated with a particular key.  If the search only
+     * pushed some attributes, the others are fetched from the server the
+     * first time one of them is asked for.  If that fetch fails, the error
+     * is printed and those attributes are <code>null</code> from then on,
+     * without asking the server again; use {@link #fetchValue(String)} to
+     * get the error instead.
      *
      * @param key
      *            the name of the attribute to get the value for
      * @return the value
      */
     public byte[] getValue(String key) {
-        byte[] v = attributes.get(key);
+        AttributeProfile p = profile;
+        if (p != null) {
+            p.record(key);
+        }
+        return getUnrecordedValue(key);
+    }
+
+    /**
+     * Gets the value associated with a particular key, like
+     * {@link #getValue(String)}, but throws an exception if the attributes
+     * left out of the search could not be fetched from the server.
+     *
+     * @param key
+     *            the name of the attribute to get the value for
+     * @return the value
+     * @throws IOException
+     *             if fetching the attribute failed, now or on an earlier
+     *             call
+     */
+    public byte[] fetchValue(String key) throws IOException {
+        AttributeProfile p = profile;
+        if (p != null) {
+            p.record(key);
+        }
+        return readValue(key);
+    }
+
+    // Gets a value without recording the read in the attribute profile,
+    // for copies of the whole result made by the library (logging,
+    // caching) rather than reads by the application
+    byte[] getUnrecordedValue(String key) {
+        try {
+            return readValue(key);
+        } catch (IOException e) {
+            // already printed when the fetch failed
+            return null;
+        }
+    }
+
+    private byte[] readValue(String key) throws IOException {
+        byte[] v;
+        synchronized (attributes) {
+            v = attributes.get(key);
+        }
+        LazyAttributeFetcher f = fetcher;
+        if (v == null && f != null && f.provides(key)) {
+            IOException error = fetchError;
+            if (error != null) {
+                IOException e2 = new IOException();
+                e2.initCause(error);
+                throw e2;
+            }
+            try {
+                f.fetch(this);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (IOException e) {
+                // a fetch interrupted in another thread may be retried
+                if (!(e instanceof InterruptedIOException)
+                        && !(e.getCause() instanceof InterruptedIOException)) {
+                    e.printStackTrace();
+                    fetchError = e;
+                }
+                throw e;
+            }
+            synchronized (attributes) {
+                v = attributes.get(key);
+            }
+        }
         if (v == null) {
             return null;
         } else {
@@ -67,7 +171,10 @@ public class Result {
     }
 
     public String getStrValue(String name) {
-        byte value[] = getValue(name);
+        return formatValue(name, getValue(name));
+    }
+
+    private static String formatValue(String name, byte value[]) {
         try {
         if (value.length == 0) {
             return "";
@@ -101,7 +208,14 @@ public class Result {
      * @return a set of keys
      */
     public Set<String> getKeys() {
-        return Collections.unmodifiableSet(attributes.keySet());
+        if (fetcher == null) {
+            return Collections.unmodifiableSet(attributes.keySet());
+        }
+        // attributes may be added while the caller iterates
+        synchronized (attributes) {
+            return Collections.unmodifiableSet(new HashSet<String>(
+                    attributes.keySet()));
+        }
     }
 
     @Override
@@ -110,9 +224,9 @@ public class Result {
         sb.append("Result [");
 
         for (String name : getKeys()) {
-            byte value[] = getValue(name);
+            byte value[] = getUnrecordedValue(name);
             sb.append(" '" + name + "'");
-            sb.append(":" + getStrValue(name));
+            sb.append(":" + formatValue(name, value));
             sb.append(" (" + value.length + ")");
         }
         sb.append(" ]");
@@ -0,0 +1,262 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the results of evaluating local data with
+ * {@link SearchFactory#generateResult(byte[], Set)}, so that evaluating
+ * the same data against the same filters again is answered without the
+ * servers.
+ * <p>
+ * Results are keyed by the signature of the data, the filters (including
+ * their code, blobs, arguments, and thresholds), and the requested
+ * attributes.  They are kept in memory up to a size limit, least recently
+ * used first out, and optionally also in a directory up to a second size
+ * limit, so that they survive restarts.  A cache may be shared by several
+ * search factories.
+ */
+public final class ResultCache {
+    private final long maxMemoryBytes;
+
+    // null if there is no disk cache
+    private final DiskCache disk;
+
+    // key to the hostname and attributes of a result, access-ordered
+    private final LinkedHashMap<String, CachedResult> memory =
+            new LinkedHashMap<String, CachedResult>(16, 0.75f, true);
+
+    private long memoryBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class CachedResult {
+        final String hostname;
+
+        final Map<String, byte[]> attributes;
+
+        final long size;
+
+        CachedResult(String hostname, Map<String, byte[]> attributes) {
+            this.hostname = hostname;
+            this.attributes = attributes;
+            long size = 64 + 2 * hostname.length();
+            for (Map.Entry<String, byte[]> e : attributes.entrySet()) {
+                size += 64 + 2 * e.getKey().length() + e.getValue().length;
+            }
+            this.size = size;
+        }
+    }
+
+    /**
+     * Creates a result cache kept only in memory.
+     *
+     * @param maxMemoryBytes
+     *            the most bytes of results to keep in memory
+     */
+    public ResultCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * Creates a result cache kept in memory and in a directory.
+     *
+     * @param maxMemoryBytes
+     *            the most bytes of results to keep in memory
+     * @param directory
+     *            the directory to store results in, or <code>null</code>
+     *            for no disk cache
+     * @param maxDiskBytes
+     *            the most bytes to store in the directory
+     */
+    public ResultCache(long maxMemoryBytes, File directory,
+            long maxDiskBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        if (directory != null) {
+            disk = new DiskCache(directory, maxDiskBytes);
+        } else {
+            disk = null;
+        }
+    }
+
+    // Builds the cache key for evaluating data against filters
+    static String key(Signature data, List<Filter> filters,
+            Set<String> attributes) {
+        List<String> parts = new ArrayList<String>();
+        for (Filter f : filters) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(f.getName()).append('\0');
+            sb.append(f.getFilterCode().getSignature().asString());
+            sb.append('\0').append(f.getBlobSig().asString());
+            sb.append('\0').append(f.getMinScore());
+            sb.append('\0').append(f.getMaxScore());
+            for (String s : f.getDependencies()) {
+                sb.append("\0d").append(s);
+            }
+            for (String s : f.getArguments()) {
+                sb.append("\0a").append(s);
+            }
+            parts.add(sb.toString());
+        }
+        Collections.sort(parts);
+
+        StringBuilder key = new StringBuilder(data.asString());
+        for (String s : parts) {
+            key.append('\n').append(s);
+        }
+        key.append("\n\n");
+        if (attributes == null || attributes.isEmpty()) {
+            // all attributes
+            key.append('*');
+        } else {
+            List<String> names = new ArrayList<String>(attributes);
+            Collections.sort(names);
+            for (String s : names) {
+                key.append('\0').append(s);
+            }
+        }
+        return new Signature(key.toString().getBytes(
+                StandardCharsets.UTF_8)).asString();
+    }
+
+    // Returns the cached result for a key, or null
+    Result get(String key) {
+        CachedResult cached;
+        synchronized (memory) {
+            cached = memory.get(key);
+        }
+        if (cached == null && disk != null) {
+            byte[] stored = disk.get(key);
+            if (stored != null) {
+                try {
+                    cached = decode(stored);
+                    remember(key, cached);
+                } catch (IOException e) {
+                    // corrupt
+                    e.printStackTrace();
+                    disk.remove(key);
+                }
+            }
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new Result(cached.attributes, cached.hostname);
+    }
+
+    void put(String key, Result result) {
+        Map<String, byte[]> attributes = new HashMap<String, byte[]>();
+        for (String name : result.getKeys()) {
+            attributes.put(name, result.getUnrecordedValue(name));
+        }
+        CachedResult cached = new CachedResult(result
+                .getObjectIdentifier().getHostname(), attributes);
+        remember(key, cached);
+        if (disk != null) {
+            try {
+                disk.put(key, encode(cached));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void remember(String key, CachedResult cached) {
+        if (cached.size > maxMemoryBytes) {
+            return;
+        }
+        synchronized (memory) {
+            CachedResult old = memory.put(key, cached);
+            if (old != null) {
+                memoryBytes -= old.size;
+            }
+            memoryBytes += cached.size;
+            Iterator<CachedResult> it = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+                CachedResult evicted = it.next();
+                if (evicted == cached) {
+                    continue;
+                }
+                memoryBytes -= evicted.size;
+                it.remove();
+            }
+        }
+    }
+
+    private static byte[] encode(CachedResult cached) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(cached.hostname);
+        out.writeInt(cached.attributes.size());
+        for (Map.Entry<String, byte[]> e : cached.attributes.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeInt(e.getValue().length);
+            out.write(e.getValue());
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static CachedResult decode(byte[] stored) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                stored));
+        String hostname = in.readUTF();
+        int count = in.readInt();
+        Map<String, byte[]> attributes = new HashMap<String, byte[]>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new IOException("Truncated cached result");
+            }
+            byte[] value = new byte[length];
+            in.readFully(value);
+            attributes.put(name, value);
+        }
+        return new CachedResult(hostname, attributes);
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups not answered from the cache.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+}
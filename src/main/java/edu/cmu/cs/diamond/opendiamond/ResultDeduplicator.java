@@ -0,0 +1,192 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drops results whose object has already been returned, for searches whose
+ * scopes overlap or which are restarted.
+ * <p>
+ * Objects are identified by a 64-bit hash of their <code>_ObjectID</code>
+ * and <code>Device-Name</code> attributes, so memory use does not depend
+ * on the length of object IDs.  Results without an <code>_ObjectID</code>
+ * are always returned.  An exact deduplicator keeps the hashes in an
+ * off-heap table of bounded size; once the table is full, objects not
+ * yet seen are no longer remembered and may be returned again.  An
+ * approximate deduplicator uses a Bloom filter instead, which takes much
+ * less memory but occasionally drops an object it has not seen.
+ * <p>
+ * Install a deduplicator with {@link Search#setDeduplicator}.  The same
+ * deduplicator may be given to several searches, for example to a search
+ * which replaces an earlier one, so that objects are returned only once
+ * across all of them.
+ */
+public final class ResultDeduplicator {
+    interface IdSet {
+        // Returns false if the value was (probably) already present
+        boolean add(long value);
+
+        long getMemoryUsage();
+
+        boolean isSaturated();
+    }
+
+    private final IdSet ids;
+
+    private final boolean approximate;
+
+    // host -> { results, duplicates }
+    private final Map<String, long[]> counts = new HashMap<String, long[]>();
+
+    private ResultDeduplicator(IdSet ids, boolean approximate) {
+        this.ids = ids;
+        this.approximate = approximate;
+    }
+
+    /**
+     * Creates a deduplicator which drops only objects it has seen.
+     *
+     * @param maxBytes
+     *            the most memory to use for remembering objects, at 8
+     *            bytes per slot; at most 1 GB is used
+     * @return the deduplicator
+     */
+    public static ResultDeduplicator exact(long maxBytes) {
+        return new ResultDeduplicator(new OffHeapLongSet(maxBytes), false);
+    }
+
+    /**
+     * Creates a deduplicator backed by a Bloom filter.
+     *
+     * @param expectedObjects
+     *            the number of distinct objects expected
+     * @param falsePositiveRate
+     *            the fraction of new objects which may be wrongly dropped
+     *            once <code>expectedObjects</code> have been seen
+     * @return the deduplicator
+     */
+    public static ResultDeduplicator approximate(long expectedObjects,
+            double falsePositiveRate) {
+        return new ResultDeduplicator(new BloomFilter(expectedObjects,
+                falsePositiveRate), true);
+    }
+
+    // Records a result and returns true if its object was seen before
+    synchronized boolean isDuplicate(Map<String, byte[]> attributes,
+            String host) {
+        long[] c = counts.get(host);
+        if (c == null) {
+            c = new long[2];
+            counts.put(host, c);
+        }
+        c[0]++;
+        byte[] objectID = attributes.get("_ObjectID");
+        if (objectID == null) {
+            // can't tell objects apart; don't drop them all as one
+            return false;
+        }
+        if (ids.add(hash(objectID, attributes.get("Device-Name")))) {
+            return false;
+        }
+        c[1]++;
+        return true;
+    }
+
+    static long hash(byte[] objectID, byte[] deviceName) {
+        // FNV-1a over both values, with a final mix so that all bits
+        // depend on all input bytes
+        long h = 0xcbf29ce484222325L;
+        h = fnv(h, objectID);
+        h = (h ^ 0xff) * 0x100000001b3L;
+        h = fnv(h, deviceName);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long fnv(long h, byte[] value) {
+        if (value != null) {
+            for (byte b : value) {
+                h = (h ^ (b & 0xff)) * 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Returns whether this deduplicator may drop objects it has not seen.
+     */
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    /**
+     * Returns whether more objects have been seen than this deduplicator
+     * was sized for.  An exact deduplicator then stops remembering new
+     * objects; an approximate one drops new objects more often than
+     * requested.
+     */
+    public synchronized boolean isSaturated() {
+        return ids.isSaturated();
+    }
+
+    /**
+     * Gets the memory used to remember objects, in bytes.
+     */
+    public synchronized long getMemoryUsage() {
+        return ids.getMemoryUsage();
+    }
+
+    /**
+     * Gets the number of results from a host that were checked.
+     *
+     * @param host
+     *            the host name
+     * @return the number of results
+     */
+    public synchronized long getResultCount(String host) {
+        long[] c = counts.get(host);
+        return c == null ? 0 : c[0];
+    }
+
+    /**
+     * Gets the number of results from a host that were dropped.
+     *
+     * @param host
+     *            the host name
+     * @return the number of duplicates
+     */
+    public synchronized long getDuplicateCount(String host) {
+        long[] c = counts.get(host);
+        return c == null ? 0 : c[1];
+    }
+
+    /**
+     * Gets the fraction of results from each host that were dropped.
+     *
+     * @return a map from host name to duplicate rate
+     */
+    public synchronized Map<String, Double> getDuplicateRates() {
+        Map<String, Double> rates = new HashMap<String, Double>();
+        for (Map.Entry<String, long[]> e : counts.entrySet()) {
+            long[] c = e.getValue();
+            rates.put(e.getKey(), (double) c[1] / c[0]);
+        }
+        return rates;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+/**
+ * Receives changes to the visible results of a {@link ScoredResultStore}.
+ * Methods are called with the store locked, in the order the changes
+ * happen, and should return quickly.
+ */
+public interface ScoredResultListener {
+    /**
+     * Called when a result becomes visible, either because it was added
+     * and passes the current thresholds, or because a threshold changed.
+     *
+     * @param result
+     *            the result
+     */
+    void resultShown(Result result);
+
+    /**
+     * Called when a visible result no longer passes the thresholds.
+     *
+     * @param result
+     *            the result
+     */
+    void resultHidden(Result result);
+}
@@ -0,0 +1,363 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the results of a search, indexed by filter score, so that filter
+ * thresholds can be changed without restarting the search.
+ * <p>
+ * Run the search with relaxed thresholds (see
+ * {@link SearchFactory#withThreshold}), request the attributes from
+ * {@link #getScoreAttributes()}, and add each result to the store.  The
+ * store shows only results passing its own, stricter thresholds, which
+ * start as those of the filters it was created from.  Changing a threshold
+ * only examines the results whose scores lie between the old and new
+ * values.
+ * <p>
+ * A filter passes a result if its score is between the minimum and
+ * maximum, inclusive, as on the server.  Results without a score for a
+ * filter always pass it.
+ */
+public class ScoredResultStore {
+    private static final String SCORE_PREFIX = "_filter.";
+
+    private static final String SCORE_SUFFIX = "_score";
+
+    private final String[] filterNames;
+
+    private final double[] minScores;
+
+    private final double[] maxScores;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private final ScoreIndex[] indexes;
+
+    private int visibleCount;
+
+    private final List<ScoredResultListener> listeners =
+            new CopyOnWriteArrayList<ScoredResultListener>();
+
+    private static class Entry {
+        private final Result result;
+
+        private final double[] scores;
+
+        // number of filters the result doesn't pass
+        private int failures;
+
+        private Entry(Result result, double[] scores) {
+            this.result = result;
+            this.scores = scores;
+        }
+    }
+
+    // Entry ids sorted by one filter's score
+    private static class ScoreIndex {
+        private double[] scores = new double[64];
+
+        private int[] ids = new int[64];
+
+        private int size;
+
+        private void insert(double score, int id) {
+            if (size == ids.length) {
+                scores = Arrays.copyOf(scores, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            // after any equal scores, so arrival order is kept
+            int pos = upperBound(score);
+            System.arraycopy(scores, pos, scores, pos + 1, size - pos);
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            scores[pos] = score;
+            ids[pos] = id;
+            size++;
+        }
+
+        // first position with a score >= the given one
+        private int lowerBound(double score) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (scores[mid] < score) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        // first position with a score > the given one
+        private int upperBound(double score) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (scores[mid] <= score) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Creates a store whose initial thresholds are those of the filters of
+     * the given search factory.
+     *
+     * @param factory
+     *            the search factory with the thresholds to show
+     */
+    public ScoredResultStore(SearchFactory factory) {
+        List<Filter> filters = factory.getFilters();
+        int n = filters.size();
+        filterNames = new String[n];
+        minScores = new double[n];
+        maxScores = new double[n];
+        indexes = new ScoreIndex[n];
+        for (int i = 0; i < n; i++) {
+            Filter f = filters.get(i);
+            filterNames[i] = f.getName();
+            minScores[i] = f.getMinScore();
+            maxScores[i] = f.getMaxScore();
+            indexes[i] = new ScoreIndex();
+        }
+    }
+
+    /**
+     * Gets the name of the attribute in which the server reports a
+     * filter's score.
+     *
+     * @param filterName
+     *            the name of the filter
+     * @return the attribute name
+     */
+    public static String getScoreAttribute(String filterName) {
+        return SCORE_PREFIX + filterName + SCORE_SUFFIX;
+    }
+
+    /**
+     * Gets the attributes which results need for this store.  Add these to
+     * the attributes requested when creating the search.
+     *
+     * @return the score attribute of every filter
+     */
+    public Set<String> getScoreAttributes() {
+        Set<String> attrs = new HashSet<String>();
+        for (String name : filterNames) {
+            attrs.add(getScoreAttribute(name));
+        }
+        return attrs;
+    }
+
+    public void addListener(ScoredResultListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ScoredResultListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds a result, showing it if it passes the current thresholds.
+     *
+     * @param result
+     *            a result from the search
+     * @return true if the result is visible
+     */
+    public synchronized boolean add(Result result) {
+        int id = entries.size();
+        double[] scores = new double[filterNames.length];
+        Entry e = new Entry(result, scores);
+        for (int i = 0; i < filterNames.length; i++) {
+            scores[i] = parseScore(result.getValue(
+                    getScoreAttribute(filterNames[i])));
+            if (!Double.isNaN(scores[i])) {
+                indexes[i].insert(scores[i], id);
+            }
+            if (!passes(i, scores[i])) {
+                e.failures++;
+            }
+        }
+        entries.add(e);
+        if (e.failures == 0) {
+            visibleCount++;
+            for (ScoredResultListener l : listeners) {
+                l.resultShown(result);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    static double parseScore(byte[] value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(Util.extractString(value).trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private boolean passes(int filter, double score) {
+        return Double.isNaN(score) ||
+                (score >= minScores[filter] && score <= maxScores[filter]);
+    }
+
+    private int indexOf(String filterName) {
+        for (int i = 0; i < filterNames.length; i++) {
+            if (filterNames[i].equals(filterName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No such filter: " + filterName);
+    }
+
+    /**
+     * Changes the thresholds of one filter, showing and hiding results as
+     * needed.
+     *
+     * @param filterName
+     *            the name of the filter
+     * @param minScore
+     *            the score below which results are hidden
+     * @param maxScore
+     *            the score above which results are hidden
+     * @throws IllegalArgumentException
+     *             if the store has no such filter
+     */
+    public synchronized void setThreshold(String filterName, double minScore,
+            double maxScore) {
+        int f = indexOf(filterName);
+        double oldMin = minScores[f];
+        double oldMax = maxScores[f];
+        minScores[f] = minScore;
+        maxScores[f] = maxScore;
+
+        // only scores between the old and new bounds can change state
+        ScoreIndex index = indexes[f];
+        int minFrom = index.lowerBound(Math.min(oldMin, minScore));
+        int minTo = index.lowerBound(Math.max(oldMin, minScore));
+        update(f, minFrom, minTo, -1, -1, oldMin, oldMax);
+        update(f, index.upperBound(Math.min(oldMax, maxScore)),
+                index.upperBound(Math.max(oldMax, maxScore)), minFrom, minTo,
+                oldMin, oldMax);
+    }
+
+    // Re-evaluates the entries at index positions [from, to), except
+    // those in [skipFrom, skipTo), which have already been done
+    private void update(int f, int from, int to, int skipFrom, int skipTo,
+            double oldMin, double oldMax) {
+        ScoreIndex index = indexes[f];
+        for (int pos = from; pos < to; pos++) {
+            if (pos >= skipFrom && pos < skipTo) {
+                continue;
+            }
+            double score = index.scores[pos];
+            boolean before = score >= oldMin && score <= oldMax;
+            boolean after = passes(f, score);
+            if (before == after) {
+                continue;
+            }
+            Entry e = entries.get(index.ids[pos]);
+            if (after) {
+                if (--e.failures == 0) {
+                    visibleCount++;
+                    for (ScoredResultListener l : listeners) {
+                        l.resultShown(e.result);
+                    }
+                }
+            } else {
+                if (e.failures++ == 0) {
+                    visibleCount--;
+                    for (ScoredResultListener l : listeners) {
+                        l.resultHidden(e.result);
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized double getMinScore(String filterName) {
+        return minScores[indexOf(filterName)];
+    }
+
+    public synchronized double getMaxScore(String filterName) {
+        return maxScores[indexOf(filterName)];
+    }
+
+    /**
+     * Gets the number of results added.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of results passing the current thresholds.
+     */
+    public synchronized int getVisibleCount() {
+        return visibleCount;
+    }
+
+    /**
+     * Gets the results passing the current thresholds, in the order they
+     * were added.
+     */
+    public synchronized List<Result> getVisibleResults() {
+        List<Result> result = new ArrayList<Result>(visibleCount);
+        for (Entry e : entries) {
+            if (e.failures == 0) {
+                result.add(e.result);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Gets the results passing the current thresholds, highest score for
+     * the given filter first.  Results without a score for the filter are
+     * omitted.
+     *
+     * @param filterName
+     *            the name of the filter to sort by
+     * @throws IllegalArgumentException
+     *             if the store has no such filter
+     */
+    public synchronized List<Result> getVisibleResultsByScore(
+            String filterName) {
+        ScoreIndex index = indexes[indexOf(filterName)];
+        List<Result> result = new ArrayList<Result>();
+        for (int pos = index.size - 1; pos >= 0; pos--) {
+            Entry e = entries.get(index.ids[pos]);
+            if (e.failures == 0) {
+                result.add(e.result);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+}
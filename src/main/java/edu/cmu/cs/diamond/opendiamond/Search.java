@@ -13,10 +13,12 @@
 package edu.cmu.cs.diamond.opendiamond;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Representation of a running or closed Diamond search.
@@ -33,34 +35,14 @@ import java.util.concurrent.ExecutionException;
  *
  */
 public class Search {
-    private static class SessionVariables {
-        final private String hostname;
-
-        final private Map<String, Double> map;
-
-        public SessionVariables(String hostname, Map<String, Double> vars) {
-            this.hostname = hostname;
-
-            map = Collections
-                    .unmodifiableMap(new HashMap<String, Double>(vars));
-        }
-
-        public Map<String, Double> getVariables() {
-            return map;
-        }
-
-        @Override
-        public String toString() {
-            return hostname + ": " + map.toString();
-        }
-    }
-
     final private ConnectionSet cs;
 
     private final Set<String> pushAttributes;
 
     private final LoggingFramework logging;
 
+    private final SearchMetrics metrics;
+
     private volatile boolean closed;
 
     private Throwable closeCause;
@@ -69,7 +51,30 @@ public class Search {
 
     private final Object rpcLock = new Object();
 
-    private static byte[] retrainData;
+    private volatile StatisticsSnapshot statisticsSnapshot;
+
+    private final StatisticsHistory statisticsHistory =
+            new StatisticsHistory();
+
+    private final HostHealthTracker healthTracker;
+
+    private final SessionVariableEngine sessionVariables;
+
+    private Poller autoMerger;
+
+    private volatile Map<String, Double> mergedSessionVariables =
+            Collections.emptyMap();
+
+    private Poller statisticsPoller;
+
+    private volatile ResultDeduplicator deduplicator;
+
+    private LazyAttributeFetcher lazyAttributes;
+
+    private AttributeProfile attributeProfile;
+
+    private final List<FeedbackAccumulator> feedbackAccumulators =
+            new ArrayList<FeedbackAccumulator>();
 
     /**
      * Closes the Search. After calling this method, all other methods will
@@ -93,6 +98,25 @@ public class Search {
                     throw new RuntimeException("Failed to close connection set", e);
                 }
                 closeCause = cause;
+                metrics.unregister();
+                if (statisticsPoller != null) {
+                    statisticsPoller.stop();
+                    statisticsPoller = null;
+                }
+                if (autoMerger != null) {
+                    autoMerger.stop();
+                    autoMerger = null;
+                }
+                for (FeedbackAccumulator f : feedbackAccumulators) {
+                    f.close();
+                }
+                feedbackAccumulators.clear();
+                if (lazyAttributes != null) {
+                    lazyAttributes.close();
+                }
+                if (attributeProfile != null) {
+                    attributeProfile.save();
+                }
             }
         }
         logging.stoppedSearch(cause);
@@ -134,19 +158,22 @@ public class Search {
     public void retrainFilter(Map<String, FeedbackObject> map) throws InterruptedException, IOException {
         //checkClosed();
         // encode
-        List<String> names = new ArrayList<String>();
-        List<Integer> labels = new ArrayList<Integer>();
-        List<byte[]> features = new ArrayList<byte[]>();
+        String[] names = new String[map.size()];
+        int[] labels = new int[map.size()];
+        byte[][] features = new byte[map.size()][];
 
         cs.pauseBlastQueue();
 
+        int i = 0;
         for (Map.Entry<String, FeedbackObject> e : map.entrySet()) {
             FeedbackObject value = e.getValue();
-            names.add(e.getKey());
-            labels.add(value.label);
-            features.add(value.feature_vector);
+            names[i] = e.getKey();
+            labels[i] = value.label;
+            features[i] = value.feature_vector;
+            i++;
         }
-        retrainData = new XDR_retrain(names, labels, features).encode();
+        final byte[] retrainData = new XDR_retrain(names, labels, features)
+                .encode();
 
 
         synchronized (rpcLock) {
@@ -173,6 +200,106 @@ public class Search {
         cs.resumeBlastQueue();
     }
 
+    /**
+     * Creates an accumulator which sends relevance feedback to the servers
+     * in the background, in batches, without pausing results.
+     *
+     * @param maxBatchSize
+     *            the most feedback objects to send in one batch
+     * @param maxDelay
+     *            the longest time feedback may wait for its batch to fill
+     * @param unit
+     *            the unit of <code>maxDelay</code>
+     * @return a new accumulator, which is closed when the search is
+     * @throws SearchClosedException
+     *             if this <code>Search</code> is closed
+     */
+    public FeedbackAccumulator createFeedbackAccumulator(int maxBatchSize,
+            long maxDelay, TimeUnit unit) throws SearchClosedException {
+        synchronized (closeLock) {
+            checkClosed();
+            FeedbackAccumulator f = new FeedbackAccumulator(this,
+                    cs.getHostnames(), maxBatchSize, maxDelay, unit);
+            feedbackAccumulators.add(f);
+            return f;
+        }
+    }
+
+    // Sends one batch from a FeedbackAccumulator to all servers
+    void sendFeedback(final FeedbackAccumulator.Batch batch) {
+        IOException failure = null;
+        try {
+            checkClosed();
+            final byte[] data = batch.encode();
+            synchronized (rpcLock) {
+                CompletionService<?> replies = cs
+                        .runOnAllServers(new ConnectionFunction<Object>() {
+                            public Callable<Object> createCallable(
+                                    final Connection c) {
+                                return new Callable<Object>() {
+                                    public Object call() throws Exception {
+                                        c.sendRetrain(data);
+                                        batch.getHostFuture(c.getHostname())
+                                                .complete(null);
+                                        return null;
+                                    }
+                                };
+                            }
+                        });
+                Util.checkResultsForIOException(cs.size(), replies);
+            }
+        } catch (SearchClosedException e) {
+            failure = e;
+        } catch (IOException e) {
+            close(e);
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException();
+        }
+        batch.finish(failure);
+    }
+
+    void setLazyAttributeFetcher(LazyAttributeFetcher fetcher) {
+        lazyAttributes = fetcher;
+    }
+
+    void setAttributeProfile(AttributeProfile profile) {
+        attributeProfile = profile;
+    }
+
+    /**
+     * Hints that the application is about to look at the attributes which
+     * were not pushed for some results, for example the next page of
+     * thumbnails.  The attributes are fetched in the background, in one
+     * pipelined batch per server.  Does nothing unless the search was
+     * created with {@link SearchFactory#createSearch(Set, Set)}.
+     *
+     * @param results
+     *            results of this search
+     */
+    public void prefetch(Collection<Result> results) {
+        if (lazyAttributes != null) {
+            lazyAttributes.prefetch(results);
+        }
+    }
+
+    /**
+     * Drops results whose object has already been returned.  Takes effect
+     * from the next call to {@link #getNextResult()}.
+     *
+     * @param deduplicator
+     *            the deduplicator to check results against, or
+     *            <code>null</code> to return all results
+     */
+    public void setDeduplicator(ResultDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    public ResultDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
     /**
      * Blocks and returns with the next {@link Result} of this search, or
      * <code>null</code> if there are no more results. The method will block
@@ -191,29 +318,45 @@ public class Search {
     public Result getNextResult() throws InterruptedException, IOException {
         checkClosed();
 
-        BlastChannelObject bco = cs.getNextBlastChannelObject();
+        BlastChannelObject bco;
+        Map<String, byte[]> attrs;
+        while (true) {
+            bco = cs.getNextBlastChannelObject();
 
-        // done?
-        if (bco == BlastChannelObject.NO_MORE_RESULTS) {
-            logging.logNoMoreResults();
-            return null;
-        }
+            // done?
+            if (bco == BlastChannelObject.NO_MORE_RESULTS) {
+                logging.logNoMoreResults();
+                return null;
+            }
 
-        // check for exception
-        IOException e = bco.getException();
-        if (e != null) {
-            close(e);
-            IOException e2 = new IOException();
-            e2.initCause(e);
-            throw e2;
+            // check for exception
+            IOException e = bco.getException();
+            if (e != null) {
+                close(e);
+                IOException e2 = new IOException();
+                e2.initCause(e);
+                throw e2;
+            }
+
+            XDR_object obj = bco.getObj();
+            attrs = obj.getAttributes();
+
+            ResultDeduplicator d = deduplicator;
+            if (d == null || !d.isDuplicate(attrs, bco.getHostname())) {
+                break;
+            }
         }
 
         // compose new Result
-        XDR_object obj = bco.getObj();
-        Map<String, byte[]> attrs = obj.getAttributes();
-
         Result result = new Result(attrs, bco.getHostname());
+        if (lazyAttributes != null) {
+            result.setLazyAttributeFetcher(lazyAttributes);
+        }
+        if (attributeProfile != null) {
+            result.setAttributeProfile(attributeProfile);
+        }
 
+        metrics.result();
         logging.saveGetNewResult(result);
 
         return result;
@@ -235,6 +378,7 @@ public class Search {
         checkClosed();
 
         Map<String, ServerStatistics> result = new HashMap<String, ServerStatistics>();
+        StatisticsSnapshot snapshot;
         synchronized (rpcLock) {
             // request_stats = 29
             CompletionService<MiniRPCReply> results = cs
@@ -266,11 +410,131 @@ public class Search {
                 close(e);
                 throw e;
             }
+            snapshot = new StatisticsSnapshot(result, statisticsSnapshot,
+                    statisticsHistory);
+            statisticsSnapshot = snapshot;
         }
+        healthTracker.update(snapshot);
         logging.updateStatistics(result);
         return result;
     }
 
+    /**
+     * Gets the statistics most recently fetched by
+     * {@link #getStatistics()} or by background polling, without
+     * contacting the servers.
+     *
+     * @return the latest statistics, or <code>null</code> if none have
+     *         been fetched yet
+     * @throws SearchClosedException
+     *             if this <code>Search</code> is closed
+     */
+    public StatisticsSnapshot getStatisticsSnapshot()
+            throws SearchClosedException {
+        checkClosed();
+        return statisticsSnapshot;
+    }
+
+    /**
+     * Gets the history of the statistics of this search, summed over all
+     * servers.  A sample is added each time statistics are fetched.  The
+     * returned object is live.
+     *
+     * @return the statistics history
+     */
+    public StatisticsHistory getStatisticsHistory() {
+        return statisticsHistory;
+    }
+
+    /**
+     * Gets the health of each server as of the latest statistics, slowest
+     * first.  Statistics must be fetched regularly, by
+     * {@link #getStatistics()} or by background polling, for this to be
+     * meaningful; rates are only known from the second fetch.
+     *
+     * @return the servers of this search, slowest first, or an empty list
+     *         if no statistics have been fetched
+     */
+    public List<HostHealth> getHostHealth() {
+        return healthTracker.getRanking();
+    }
+
+    /**
+     * Sets how many times slower than the median server a server must be
+     * to be considered a straggler.  The default is 2, or the value of
+     * the <code>edu.cmu.cs.diamond.opendiamond.straggler.threshold</code>
+     * property.  Takes effect at the next statistics fetch.
+     *
+     * @param threshold
+     *            a value greater than 1
+     */
+    public void setStragglerThreshold(double threshold) {
+        healthTracker.setThreshold(threshold);
+    }
+
+    public double getStragglerThreshold() {
+        return healthTracker.getThreshold();
+    }
+
+    /**
+     * Registers a listener to be told when servers become, or stop being,
+     * stragglers.  Detection happens whenever statistics are fetched.
+     *
+     * @param listener
+     *            the listener
+     */
+    public void addStragglerListener(StragglerListener listener) {
+        healthTracker.addListener(listener);
+    }
+
+    public void removeStragglerListener(StragglerListener listener) {
+        healthTracker.removeListener(listener);
+    }
+
+    /**
+     * Starts fetching statistics in the background at a fixed interval.
+     * The results are available from {@link #getStatisticsSnapshot()}.
+     * Any previous polling is stopped.  Polling stops when the search is
+     * closed, including when a poll fails.
+     *
+     * @param interval
+     *            the time between polls
+     * @param unit
+     *            the unit of <code>interval</code>
+     * @throws SearchClosedException
+     *             if this <code>Search</code> is closed
+     */
+    public void startStatisticsPolling(long interval, TimeUnit unit)
+            throws SearchClosedException {
+        Poller poller = new Poller("statistics-poller", interval, unit,
+                new Poller.Task() {
+                    public void run() throws IOException,
+                            InterruptedException {
+                        getStatistics();
+                    }
+                });
+        synchronized (closeLock) {
+            checkClosed();
+            if (statisticsPoller != null) {
+                statisticsPoller.stop();
+            }
+            statisticsPoller = poller;
+            poller.start();
+        }
+    }
+
+    /**
+     * Stops background statistics polling, if it is running.
+     */
+    public void stopStatisticsPolling() {
+        synchronized (closeLock) {
+            if (statisticsPoller != null) {
+                statisticsPoller.stop();
+                statisticsPoller = null;
+            }
+        }
+    }
+
     /**
      * Takes a map of named doubles, adds to them the corresponding values
      * from each server, and pushes the new values back to all servers.
@@ -290,14 +554,15 @@ public class Search {
             InterruptedException {
         checkClosed();
 
-        // collect all the session variables
-        List<SessionVariables> sv = getSessionVariables();
-
-        // build new state
-        composeVariables(globalValues, sv);
-
-        // set it all back
-        setSessionVariables(globalValues);
+        synchronized (rpcLock) {
+            try {
+                sessionVariables.merge(globalValues);
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+        logging.saveSessionVariables(globalValues);
 
         return globalValues;
     }
@@ -316,134 +581,124 @@ public class Search {
             InterruptedException {
         checkClosed();
 
-        // collect all the session variables
-        List<SessionVariables> sv = getSessionVariables();
-
-        // create a map containing all possible keys, with values set to 0.0
-        Map<String, Double> newValues = new HashMap<String, Double>();
-        for (SessionVariables v : sv) {
-            for (String key : v.getVariables().keySet()) {
-                newValues.put(key, 0.0);
+        Map<String, Double> newValues;
+        synchronized (rpcLock) {
+            try {
+                newValues = sessionVariables.clear();
+            } catch (IOException e) {
+                close(e);
+                throw e;
             }
         }
-
-        // set it all back
-        setSessionVariables(newValues);
+        logging.saveSessionVariables(newValues);
     }
 
-    private void composeVariables(Map<String, Double> globalValues,
-            List<SessionVariables> sv) {
-
-        // System.out.println("INPUT: " + Arrays.toString(sv));
-
-        // first, gather all possible keys
-        for (SessionVariables v : sv) {
-            for (String key : v.getVariables().keySet()) {
-                if (!globalValues.containsKey(key)) {
-                    globalValues.put(key, 0.0);
-                }
+    /**
+     * Starts merging session variables in the background at a fixed
+     * interval.  The search keeps its own master copy of the values,
+     * starting empty; each merge adds the servers' values to it and pushes
+     * the result back to all servers, as
+     * {@link #mergeSessionVariables(Map)} does.  Any previous auto-merge
+     * is stopped.  Auto-merge stops when the search is closed, including
+     * when a merge fails.
+     *
+     * @param interval
+     *            the time between merges
+     * @param unit
+     *            the unit of <code>interval</code>
+     * @throws SearchClosedException
+     *             if this <code>Search</code> is closed
+     */
+    public void startSessionVariableAutoMerge(long interval, TimeUnit unit)
+            throws SearchClosedException {
+        Poller poller = new Poller("session-variable-merger", interval,
+                unit, new Poller.Task() {
+                    public void run() throws IOException,
+                            InterruptedException {
+                        autoMergeSessionVariables();
+                    }
+                });
+        synchronized (closeLock) {
+            checkClosed();
+            if (autoMerger != null) {
+                autoMerger.stop();
             }
+            autoMerger = poller;
+            poller.start();
         }
+    }
 
-        // now, compose them
-        for (Map.Entry<String, Double> e : globalValues.entrySet()) {
-            String key = e.getKey();
-
-            for (SessionVariables v : sv) {
-                Map<String, Double> localValues = v.getVariables();
-
-                // compose !
-                double global = e.getValue();
-                double local = localValues.containsKey(key) ? localValues
-                        .get(key) : 0.0;
-                double composedValue = global + local;
-                globalValues.put(key, composedValue);
+    /**
+     * Stops background merging of session variables, if it is running.
+     */
+    public void stopSessionVariableAutoMerge() {
+        synchronized (closeLock) {
+            if (autoMerger != null) {
+                autoMerger.stop();
+                autoMerger = null;
             }
         }
+    }
 
-        // System.out.println("OUTPUT: " + globalValues);
+    /**
+     * Gets the master copy of the session variables kept by auto-merge,
+     * as of the latest merge.
+     *
+     * @return the merged values, or an empty map if no auto-merge has
+     *         completed
+     * @throws SearchClosedException
+     *             if this <code>Search</code> is closed
+     */
+    public Map<String, Double> getMergedSessionVariables()
+            throws SearchClosedException {
+        checkClosed();
+        return mergedSessionVariables;
     }
 
-    private List<SessionVariables> getSessionVariables() throws IOException,
+    private void autoMergeSessionVariables() throws IOException,
             InterruptedException {
-        List<SessionVariables> result = new ArrayList<SessionVariables>();
+        checkClosed();
 
+        Map<String, Double> values;
         synchronized (rpcLock) {
-            // session_variables_get = 18
-            CompletionService<MiniRPCReply> results = cs
-                    .sendToAllControlChannels(18, new byte[0]);
             try {
-                for (int i = 0; i < cs.size(); i++) {
-                    try {
-                        MiniRPCReply reply = results.take().get();
-
-                        reply.checkStatus();
-
-                        List<XDR_diamond_session_var> vars = new XDR_diamond_session_vars(
-                                reply.getMessage().getData()).getVars();
-
-                        // add
-                        Map<String, Double> serverVars = new HashMap<String, Double>();
-                        for (XDR_diamond_session_var v : vars) {
-                            serverVars.put(v.getName(), v.getValue());
-                        }
-                        result.add(new SessionVariables(reply.getHostname(),
-                                serverVars));
-                    } catch (ExecutionException e) {
-                        Throwable cause = e.getCause();
-                        if (cause instanceof IOException) {
-                            IOException e2 = (IOException) cause;
-                            throw e2;
-                        }
-                    }
-                }
+                values = sessionVariables.autoMerge();
             } catch (IOException e) {
                 close(e);
                 throw e;
             }
         }
-
-        return result;
-
+        mergedSessionVariables = Collections.unmodifiableMap(values);
+        logging.saveSessionVariables(values);
     }
 
-    private void setSessionVariables(Map<String, Double> map)
-            throws InterruptedException, IOException {
-        // encode
-        List<XDR_diamond_session_var> vars = new ArrayList<XDR_diamond_session_var>();
-        for (Map.Entry<String, Double> e : map.entrySet()) {
-            vars.add(new XDR_diamond_session_var(e.getKey(), e.getValue()));
-        }
-        byte data[] = new XDR_diamond_session_vars(vars).encode();
+    /**
+     * Gets client-side metrics for this search.  The returned object is
+     * live: its values change as the search runs.
+     *
+     * @return the metrics of this search
+     */
+    public SearchMetricsMXBean getMetrics() {
+        return metrics;
+    }
 
-        synchronized (rpcLock) {
-            // session_variables_set = 19
-            CompletionService<MiniRPCReply> results = cs
-                    .sendToAllControlChannels(19, data);
-            try {
-                for (int i = 0; i < cs.size(); i++) {
-                    try {
-                        results.take().get().checkStatus();
-                    } catch (ExecutionException e) {
-                        Throwable cause = e.getCause();
-                        if (cause instanceof IOException) {
-                            IOException e2 = (IOException) cause;
-                            throw e2;
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                close(e);
-                throw e;
-            }
-        }
-        logging.saveSessionVariables(map);
+    /**
+     * Gets client-side metrics for the connection to each server in this
+     * search.  The returned objects are live.
+     *
+     * @return a map of hostnames to metrics for each host
+     */
+    public Map<String, HostMetricsMXBean> getHostMetrics() {
+        return metrics.getHostMetrics();
     }
 
     Search(ConnectionSet connectionSet, Set<String> pushAttributes,
-            LoggingFramework logging) {
+            LoggingFramework logging, SearchMetrics metrics) {
         this.cs = connectionSet;
         this.pushAttributes = pushAttributes;
         this.logging = logging;
+        this.metrics = metrics;
+        this.healthTracker = new HostHealthTracker(metrics);
+        this.sessionVariables = new SessionVariableEngine(connectionSet);
     }
 }
@@ -23,6 +23,15 @@ import java.util.concurrent.*;
  * 
  */
 public class SearchFactory {
+    // unfamiliar data larger than this is reexecuted before it is
+    // uploaded, in case the server has it already
+    private static final int EAGER_UPLOAD_LIMIT = Integer.getInteger(
+            "edu.cmu.cs.diamond.opendiamond.blobpresence.eagerlimit",
+            1 << 20);
+
+    private static final BlobPresenceTracker blobPresence =
+            new BlobPresenceTracker();
+
     private final ExecutorService executor = new ThreadPoolExecutor(0,
             Integer.MAX_VALUE, 1, TimeUnit.SECONDS,
             new SynchronousQueue<Runnable>());
@@ -31,6 +40,8 @@ public class SearchFactory {
 
     private final CookieMap cookieMap;
 
+    private volatile ResultCache resultCache;
+
     /**
      * Constructs a search factory from a collection of filters and a
      * cookie map.
@@ -52,6 +63,65 @@ public class SearchFactory {
         return filters.toString();
     }
 
+    /**
+     * Returns a copy of this search factory with different thresholds for
+     * one filter.  Used to run a search with relaxed thresholds, so that
+     * a {@link ScoredResultStore} can apply the real ones on the client.
+     *
+     * @param filterName
+     *            the name of the filter
+     * @param minScore
+     *            the new minimum score
+     * @param maxScore
+     *            the new maximum score
+     * @return the new search factory
+     * @throws IllegalArgumentException
+     *             if there is no such filter
+     */
+    public SearchFactory withThreshold(String filterName, double minScore,
+            double maxScore) {
+        List<Filter> newFilters = new ArrayList<Filter>();
+        boolean found = false;
+        for (Filter f : filters) {
+            if (f.getName().equals(filterName)) {
+                f = new Filter(f.getName(), f.getFilterCode(), minScore,
+                        maxScore, f.getDependencies(), f.getArguments(),
+                        f.getBlob(), f.getBlobSig());
+                found = true;
+            }
+            newFilters.add(f);
+        }
+        if (!found) {
+            throw new IllegalArgumentException("No such filter: "
+                    + filterName);
+        }
+        SearchFactory factory = new SearchFactory(newFilters, cookieMap);
+        factory.setResultCache(resultCache);
+        return factory;
+    }
+
+    /**
+     * Gets the tracker of which object data each server has, shared by
+     * all search factories, which {@link #generateResult(byte[], Set)}
+     * uses to decide whether to upload data before reexecuting it.
+     *
+     * @return the tracker
+     */
+    public static BlobPresenceTracker getBlobPresenceTracker() {
+        return blobPresence;
+    }
+
+    /**
+     * Sets the cache for results generated from object data by
+     * {@link #generateResult(byte[], Set)}.
+     *
+     * @param cache
+     *            the cache, or <code>null</code> for none
+     */
+    public void setResultCache(ResultCache cache) {
+        resultCache = cache;
+    }
+
     /**
      * Creates a search from the parameters given when constructing the
      * <code>SearchFactory</code>.
@@ -68,7 +138,81 @@ public class SearchFactory {
      */
     public Search createSearch(Set<String> desiredAttributes)
             throws IOException, InterruptedException {
+        return createSearch(desiredAttributes, null, false, null);
+    }
+
+    /**
+     * Creates a search which pushes only some attributes with each result,
+     * and fetches others from the server when they are first asked for.
+     * Lets the application show lightweight attributes, such as names and
+     * scores, for every result while fetching data and thumbnails only for
+     * the results the user looks at.  Use {@link Search#prefetch} to fetch
+     * attributes ahead of time.
+     *
+     * @param pushAttributes
+     *            the attributes to send with each result.
+     *            <code>_ObjectID</code> and <code>Device-Name</code> are
+     *            always sent, since they are needed to fetch the others.
+     * @param lazyAttributes
+     *            the attributes to fetch on demand. May be <code>null</code>,
+     *            in which case any attribute not pushed is fetched, along
+     *            with all the others.
+     * @return a running <code>Search</code>
+     * @throws IOException
+     *             if an IO error occurs
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public Search createSearch(Set<String> pushAttributes,
+            Set<String> lazyAttributes) throws IOException,
+            InterruptedException {
+        if (pushAttributes == null) {
+            throw new IllegalArgumentException(
+                    "Push attributes must be given");
+        }
+        Set<String> push = new HashSet<String>(pushAttributes);
+        push.add("_ObjectID");
+        push.add("Device-Name");
+        return createSearch(push, lazyAttributes, true, null);
+    }
+
+    /**
+     * Creates a search which learns which attributes the application reads.
+     * The attribute names read through {@link Result} are recorded and
+     * saved when the search is closed, for the same set of filters.  Later
+     * adaptive searches push only those attributes, plus
+     * <code>_ObjectID</code> and <code>Device-Name</code>; any other
+     * attribute is fetched from the server when first read, and is pushed
+     * by the searches after that.  Until something has been learned, all
+     * attributes are pushed.
+     * <p>
+     * {@link Result#getKeys()} lists only the attributes received so far.
+     *
+     * @return a running <code>Search</code>
+     * @throws IOException
+     *             if an IO error occurs
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public Search createAdaptiveSearch() throws IOException,
+            InterruptedException {
+        AttributeProfile profile = AttributeProfile.load(filters);
+        Set<String> learned = profile.getPushAttributes();
+        if (learned == null) {
+            return createSearch(null, null, false, profile);
+        }
+        Set<String> push = new HashSet<String>(learned);
+        push.add("_ObjectID");
+        push.add("Device-Name");
+        return createSearch(push, null, true, profile);
+    }
+
+    private Search createSearch(Set<String> desiredAttributes,
+            Set<String> lazyAttributes, boolean lazy,
+            AttributeProfile profile) throws IOException,
+            InterruptedException {
         final Set<String> pushAttributes;
+        final SearchMetrics metrics = new SearchMetrics();
         LoggingFramework logging = LoggingFramework
                 .createLoggingFramework("createSearch");
 
@@ -92,7 +236,7 @@ public class SearchFactory {
             futures.add(connectService.submit(new Callable<Connection>() {
                 public Connection call() throws Exception {
                     return Connection.createConnection(hostname, cookieList,
-                            filters);
+                            filters, metrics.getHost(hostname));
                 }
             }));
         }
@@ -129,13 +273,106 @@ public class SearchFactory {
         }
 
         // we're safe
-        ConnectionSet cs = new ConnectionSet(executor, connections);
+        ConnectionSet cs = new ConnectionSet(executor, connections, metrics);
 
-        Search search = new Search(cs, pushAttributes, logging);
+        Search search = new Search(cs, pushAttributes, logging, metrics);
+        if (lazy) {
+            Set<String> lazySet = null;
+            if (lazyAttributes != null) {
+                lazySet = new HashSet<String>(lazyAttributes);
+            }
+            search.setLazyAttributeFetcher(new LazyAttributeFetcher(executor,
+                    cookieMap, getReexecutionFilters(), lazySet));
+        }
+        if (profile != null) {
+            search.setAttributeProfile(profile);
+        }
+        metrics.register();
         search.start();
         return search;
     }
 
+    /**
+     * Refines a search: evaluates the filters of this search factory which
+     * are not in <code>previous</code>, or differ from it, on results
+     * already received from a search created by <code>previous</code>.
+     * Filters they depend on are evaluated too.
+     *
+     * @param previous
+     *            the search factory which produced <code>received</code>
+     * @param received
+     *            the results received so far
+     * @param desiredAttributes
+     *            a set of attribute names to fetch for the results, in
+     *            addition to their old attributes. May be <code>null</code>,
+     *            in which case all attributes will be included.
+     * @param fullSearch
+     *            whether to also start a search with this search factory,
+     *            for objects not yet received
+     * @return a running <code>Refinement</code>
+     * @throws IOException
+     *             if an IO error occurs
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public Refinement refine(SearchFactory previous,
+            Collection<Result> received, Set<String> desiredAttributes,
+            boolean fullSearch) throws IOException, InterruptedException {
+        Map<String, Filter> old = new HashMap<String, Filter>();
+        for (Filter f : previous.filters) {
+            old.put(f.getName(), f);
+        }
+        Map<String, Filter> byName = new HashMap<String, Filter>();
+        for (Filter f : filters) {
+            byName.put(f.getName(), f);
+        }
+
+        // new or changed filters, and everything they depend on
+        Set<String> needed = new HashSet<String>();
+        Deque<String> todo = new ArrayDeque<String>();
+        for (Filter f : filters) {
+            if (!sameFilter(f, old.get(f.getName()))) {
+                todo.add(f.getName());
+            }
+        }
+        while (!todo.isEmpty()) {
+            String name = todo.remove();
+            Filter f = byName.get(name);
+            if (f != null && needed.add(name)) {
+                todo.addAll(f.getDependencies());
+            }
+        }
+
+        List<Filter> evaluate = new ArrayList<Filter>();
+        for (Filter f : getReexecutionFilters()) {
+            if (needed.contains(f.getName())) {
+                evaluate.add(f);
+            }
+        }
+
+        Search search = fullSearch ? createSearch(desiredAttributes) : null;
+        try {
+            return new Refinement(executor, cookieMap, evaluate, received,
+                    desiredAttributes, search);
+        } catch (IOException e) {
+            if (search != null) {
+                search.close();
+            }
+            throw e;
+        }
+    }
+
+    private static boolean sameFilter(Filter a, Filter b) {
+        return b != null
+                && a.getFilterCode().getSignature().equals(
+                        b.getFilterCode().getSignature())
+                && a.getBlobSig().equals(b.getBlobSig())
+                && a.getMinScore() == b.getMinScore()
+                && a.getMaxScore() == b.getMaxScore()
+                && a.getArguments().equals(b.getArguments())
+                && a.getDependencies().equals(b.getDependencies());
+    }
+
     private static void cleanup(List<Future<Connection>> futures)
             throws InterruptedException {
         InterruptedException ie = null;
@@ -180,34 +417,34 @@ public class SearchFactory {
         LoggingFramework logging = LoggingFramework
                 .createLoggingFramework("generateResult");
 
-        logging.saveSearchFactory(this, desiredAttributes);
-
-        if (c == null) {
-            throw new IOException("No cookie found for host " + host);
-        }
+        try {
+            logging.saveSearchFactory(this, desiredAttributes);
 
-        List<Filter> modified = new ArrayList<Filter>();
-        for (Filter f : filters) {
-            if(f.getName().equals("PROXY")) {
-                //Skip Proxy filter 
-                continue;
+            if (c == null) {
+                throw new IOException("No cookie found for host " + host);
             }
-            modified.add(f);
-        }
 
-        Connection conn = Connection.createConnection(host, c, modified);
+            List<Filter> modified = getReexecutionFilters();
 
-        Result newResult;
+            Connection conn = Connection.createConnection(host, c, modified);
 
-        newResult = reexecute(conn, objID, attributes);
+            Result newResult;
 
-        conn.close();
+            newResult = reexecute(conn, objID, attributes);
+
+            conn.close();
 
-        return newResult;
+            return newResult;
+        } finally {
+            // also stops the writer thread of an asynchronous logger
+            logging.shutdown(null);
+        }
     }
 
     /**
-     * Generates a <code>Result</code> from object data.
+     * Generates a <code>Result</code> from object data.  If a
+     * {@link ResultCache} is set, a result cached for the same data,
+     * filters, and attributes is returned instead.
      *
      * @param data
      *            the data to evaluate
@@ -234,38 +471,64 @@ public class SearchFactory {
         LoggingFramework logging = LoggingFramework
                 .createLoggingFramework("generateResult");
 
-        logging.saveSearchFactory(this, desiredAttributes);
-
-        // prestart
-        List<Filter> modified = new ArrayList<Filter>();
-        for (Filter f : filters) {
-            if(f.getName().equals("PROXY")) {
-                //Skip Proxy filter 
-                continue;
+        try {
+            logging.saveSearchFactory(this, desiredAttributes);
+
+            // prestart
+            List<Filter> modified = getReexecutionFilters();
+
+            ResultCache cache = resultCache;
+            String cacheKey = null;
+            if (cache != null) {
+                cacheKey = ResultCache.key(signature, modified, attributes);
+                Result cached = cache.get(cacheKey);
+                if (cached != null) {
+                    return cached;
+                }
             }
-            modified.add(f);
-        }
 
-        Connection conn = Connection.createConnection(host, c, modified);
+            Connection conn = Connection.createConnection(host, c, modified);
 
-        // send eval
-        Result newResult;
-        try {
-            newResult = reexecute(conn, objID, attributes);
-        } catch (CacheMissException e) {
-            // send blob
+            // send eval
+            Result newResult;
             List<byte[]> blobs = new ArrayList<byte[]>();
             blobs.add(data);
-            conn.sendBlobs(blobs);
+            boolean uploaded = false;
+            if (!blobPresence.isPresent(host, signature)
+                    && data.length <= EAGER_UPLOAD_LIMIT) {
+                // probably new; upload it first rather than waiting for a miss
+                conn.sendBlobs(blobs);
+                blobPresence.uploaded(host, signature, true);
+                uploaded = true;
+            }
+            try {
+                newResult = reexecute(conn, objID, attributes);
+                if (!uploaded) {
+                    blobPresence.hit(host, signature);
+                }
+            } catch (CacheMissException e) {
+                blobPresence.missed(host, signature);
 
-            // retry reexecution
-            newResult = reexecute(conn, objID, attributes);
-        }
+                // send blob
+                conn.sendBlobs(blobs);
+                blobPresence.uploaded(host, signature, false);
+
+                // retry reexecution
+                newResult = reexecute(conn, objID, attributes);
+            }
 
-        // close
-        conn.close();
+            // close
+            conn.close();
 
-        return newResult;
+            if (cache != null) {
+                cache.put(cacheKey, newResult);
+            }
+
+            return newResult;
+        } finally {
+            // also stops the writer thread of an asynchronous logger
+            logging.shutdown(null);
+        }
     }
 
     private class CacheMissException extends IOException {}
@@ -276,23 +539,34 @@ public class SearchFactory {
             attributes = null;
         }
 
-        byte reexec[] = new XDR_reexecute(objID, attributes).encode();
-        // reexecute = 30
-        MiniRPCReply reply = new RPC(conn, conn.getHostname(), 30, reexec)
-                .doRPC();
-
-        // read reply
-        if (reply.getMessage().getStatus() == RPC.DIAMOND_FCACHEMISS) {
+        Map<String, byte[]> resultAttributes = conn.reexecute(objID,
+                attributes);
+        if (resultAttributes == null) {
             throw new CacheMissException();
         }
-        reply.checkStatus();
-        Map<String, byte[]> resultAttributes = new XDR_attr_list(reply
-                .getMessage().getData()).createMap();
 
         // create result
         return new Result(resultAttributes, conn.getHostname());
     }
 
+    // The filters to send when reexecuting objects: all but the proxy
+    // filter
+    List<Filter> getReexecutionFilters() {
+        List<Filter> modified = new ArrayList<Filter>();
+        for (Filter f : filters) {
+            if(f.getName().equals("PROXY")) {
+                //Skip Proxy filter 
+                continue;
+            }
+            modified.add(f);
+        }
+        return modified;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
     List<Filter> getFilters() {
         return filters;
     }
@@ -0,0 +1,380 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the search event logs written when
+ * <code>edu.cmu.cs.diamond.opendiamond.loggingframework.format</code> is
+ * <code>binary</code>.
+ * <p>
+ * Each log holds the timeline of one search.  Filter code and blobs are
+ * referenced by signature and can be fetched with {@link #getObject}.
+ * Running this class prints the timeline of each log named on the command
+ * line.
+ */
+public class SearchLogReader implements Closeable {
+    static final int MAGIC = 0x4f44534c;
+
+    static final int VERSION = 1;
+
+    static final String FILE_SUFFIX = ".events";
+
+    static final String OBJECT_DIR = "objects";
+
+    /**
+     * The kinds of event in a search log.
+     */
+    public enum Type {
+        OPENED(1), SEARCH_FACTORY(2), STARTED(3), RESULT(4),
+        NO_MORE_RESULTS(5), STATISTICS(6), SESSION_VARIABLES(7),
+        STOPPED(8), SHUTDOWN(9), DROPPED_RESULTS(10);
+
+        private final int code;
+
+        private Type(int code) {
+            this.code = code;
+        }
+
+        int getCode() {
+            return code;
+        }
+
+        static Type fromCode(int code) {
+            for (Type t : values()) {
+                if (t.code == code) {
+                    return t;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A single logged event.  The fields present depend on the type:
+     * <dl>
+     * <dt>OPENED</dt><dd>message</dd>
+     * <dt>SEARCH_FACTORY</dt><dd>filters (a list of maps with name,
+     * minScore, maxScore, code, blob, dependencies, arguments), cookieMap,
+     * attributes</dd>
+     * <dt>RESULT</dt><dd>host, objectID, device, and attributes if
+     * detailed results were logged</dd>
+     * <dt>STATISTICS</dt><dd>servers (host to counters), filters (host to
+     * filter name to counters)</dd>
+     * <dt>SESSION_VARIABLES</dt><dd>variables</dd>
+     * <dt>STOPPED, SHUTDOWN</dt><dd>cause</dd>
+     * <dt>DROPPED_RESULTS</dt><dd>count</dd>
+     * </dl>
+     */
+    public static class Event {
+        private final Type type;
+
+        private final long time;
+
+        private final Map<String, Object> fields =
+                new LinkedHashMap<String, Object>();
+
+        private Event(Type type, long time) {
+            this.type = type;
+            this.time = time;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Gets the time of the event, in milliseconds since the epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public Object get(String field) {
+            return fields.get(field);
+        }
+
+        public Map<String, Object> getFields() {
+            return Collections.unmodifiableMap(fields);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + fields;
+        }
+    }
+
+    private final DataInputStream in;
+
+    private final File objectDir;
+
+    /**
+     * Opens a search log.
+     *
+     * @param file
+     *            a log written by the binary logging framework
+     * @throws IOException
+     *             if the file cannot be read or is not a search log
+     */
+    public SearchLogReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        objectDir = new File(file.getAbsoluteFile().getParentFile()
+                .getParentFile(), OBJECT_DIR);
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a search log: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported search log version " +
+                        version);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next event.
+     *
+     * @return the event, or <code>null</code> at the end of the log
+     * @throws IOException
+     *             if the log cannot be read
+     */
+    public Event next() throws IOException {
+        while (true) {
+            byte[] data;
+            try {
+                int len = in.readInt();
+                data = new byte[len];
+                in.readFully(data);
+            } catch (EOFException e) {
+                // end of log, or a record cut short by a crash
+                return null;
+            }
+
+            DataInputStream r = new DataInputStream(
+                    new ByteArrayInputStream(data));
+            Type type = Type.fromCode(r.readUnsignedByte());
+            long time = r.readLong();
+            if (type == null) {
+                // written by a newer version; skip
+                continue;
+            }
+            Event e = new Event(type, time);
+            readFields(r, e);
+            return e;
+        }
+    }
+
+    /**
+     * Reads all remaining events.
+     */
+    public List<Event> readAll() throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        Event e;
+        while ((e = next()) != null) {
+            events.add(e);
+        }
+        return events;
+    }
+
+    /**
+     * Gets the filter code or blob with the given signature.
+     *
+     * @param signature
+     *            a signature from a SEARCH_FACTORY event
+     * @return the data
+     * @throws IOException
+     *             if the object is missing or cannot be read
+     */
+    public byte[] getObject(String signature) throws IOException {
+        if (!signature.matches("^[0-9a-f]+$")) {
+            throw new IOException("Invalid signature " + signature);
+        }
+        return Files.readAllBytes(new File(objectDir, signature).toPath());
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static void readFields(DataInputStream r, Event e)
+            throws IOException {
+        Map<String, Object> f = e.fields;
+        switch (e.type) {
+        case OPENED:
+            f.put("message", readString(r));
+            break;
+        case SEARCH_FACTORY: {
+            List<Map<String, Object>> filters =
+                    new ArrayList<Map<String, Object>>();
+            int count = r.readInt();
+            for (int i = 0; i < count; i++) {
+                Map<String, Object> filter =
+                        new LinkedHashMap<String, Object>();
+                filter.put("name", readString(r));
+                filter.put("minScore", r.readDouble());
+                filter.put("maxScore", r.readDouble());
+                filter.put("code", readString(r));
+                filter.put("blob", readString(r));
+                filter.put("dependencies", readStrings(r));
+                filter.put("arguments", readStrings(r));
+                filters.add(filter);
+            }
+            f.put("filters", filters);
+            f.put("cookieMap", readString(r));
+            f.put("attributes", readStrings(r));
+            break;
+        }
+        case RESULT: {
+            f.put("host", readString(r));
+            f.put("objectID", readString(r));
+            f.put("device", readString(r));
+            int count = r.readInt();
+            if (count >= 0) {
+                Map<String, byte[]> attrs =
+                        new LinkedHashMap<String, byte[]>();
+                for (int i = 0; i < count; i++) {
+                    String key = readString(r);
+                    int len = r.readInt();
+                    byte[] value = null;
+                    if (len >= 0) {
+                        value = new byte[len];
+                        r.readFully(value);
+                    }
+                    attrs.put(key, value);
+                }
+                f.put("attributes", attrs);
+            }
+            break;
+        }
+        case STATISTICS: {
+            Map<String, Map<String, Long>> servers =
+                    new LinkedHashMap<String, Map<String, Long>>();
+            Map<String, Map<String, Map<String, Long>>> filters =
+                    new LinkedHashMap<String, Map<String, Map<String, Long>>>();
+            int count = r.readInt();
+            for (int i = 0; i < count; i++) {
+                String host = readString(r);
+                servers.put(host, readCounters(r));
+                Map<String, Map<String, Long>> fs =
+                        new LinkedHashMap<String, Map<String, Long>>();
+                int nfilters = r.readInt();
+                for (int j = 0; j < nfilters; j++) {
+                    String name = readString(r);
+                    fs.put(name, readCounters(r));
+                }
+                filters.put(host, fs);
+            }
+            f.put("servers", servers);
+            f.put("filters", filters);
+            break;
+        }
+        case SESSION_VARIABLES: {
+            Map<String, Double> vars = new LinkedHashMap<String, Double>();
+            int count = r.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = readString(r);
+                vars.put(name, r.readDouble());
+            }
+            f.put("variables", vars);
+            break;
+        }
+        case STOPPED:
+        case SHUTDOWN:
+            f.put("cause", readString(r));
+            break;
+        case DROPPED_RESULTS:
+            f.put("count", r.readLong());
+            break;
+        case STARTED:
+        case NO_MORE_RESULTS:
+            break;
+        }
+    }
+
+    private static String readString(DataInputStream r) throws IOException {
+        int len = r.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        r.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> readStrings(DataInputStream r)
+            throws IOException {
+        int count = r.readInt();
+        if (count < 0) {
+            return null;
+        }
+        List<String> strings = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(r));
+        }
+        return strings;
+    }
+
+    private static Map<String, Long> readCounters(DataInputStream r)
+            throws IOException {
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        int count = r.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = readString(r);
+            counters.put(name, r.readLong());
+        }
+        return counters;
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            System.out.println(arg + ":");
+            try (SearchLogReader reader = new SearchLogReader(
+                    new File(arg))) {
+                long start = -1;
+                int results = 0;
+                Event e;
+                while ((e = reader.next()) != null) {
+                    if (start < 0) {
+                        start = e.getTime();
+                    }
+                    if (e.getType() == Type.RESULT) {
+                        results++;
+                    }
+                    System.out.printf("%10.3f %s%n",
+                            (e.getTime() - start) / 1000.0, e);
+                }
+                System.out.println(results + " results");
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+final class SearchMetrics implements SearchMetricsMXBean {
+    private static final String DOMAIN = "edu.cmu.cs.diamond.opendiamond";
+
+    private static final AtomicInteger searchCounter = new AtomicInteger();
+
+    private final int id = searchCounter.incrementAndGet();
+
+    private final long created = System.nanoTime();
+
+    private final AtomicLong firstResult = new AtomicLong(-1);
+
+    private final LongAdder results = new LongAdder();
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    private final ConcurrentMap<String, HostMetrics> hosts =
+            new ConcurrentHashMap<String, HostMetrics>();
+
+    private volatile BlastQueue queue;
+
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    HostMetrics getHost(String hostname) {
+        HostMetrics h = hosts.get(hostname);
+        if (h == null) {
+            HostMetrics newHost = new HostMetrics(hostname);
+            h = hosts.putIfAbsent(hostname, newHost);
+            if (h == null) {
+                h = newHost;
+            }
+        }
+        return h;
+    }
+
+    Map<String, HostMetricsMXBean> getHostMetrics() {
+        return Collections.<String, HostMetricsMXBean>unmodifiableMap(hosts);
+    }
+
+    void setQueue(BlastQueue queue) {
+        this.queue = queue;
+    }
+
+    void queueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    void result() {
+        results.increment();
+        if (firstResult.get() < 0) {
+            firstResult.compareAndSet(-1, System.nanoTime() - created);
+        }
+    }
+
+    // Publishes this search and its hosts over JMX
+    synchronized void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Search,id=" +
+                    id);
+            server.registerMBean(this, name);
+            registered.add(name);
+            for (HostMetrics h : hosts.values()) {
+                name = new ObjectName(DOMAIN + ":type=Search,id=" + id +
+                        ",host=" + ObjectName.quote(h.getHostname()));
+                server.registerMBean(h, name);
+                registered.add(name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // already gone
+            }
+        }
+        registered.clear();
+    }
+
+    public long getResultCount() {
+        return results.sum();
+    }
+
+    public long getTimeToFirstResultNanos() {
+        return firstResult.get();
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - created;
+    }
+
+    public long getBytesReceived() {
+        long total = 0;
+        for (HostMetrics h : hosts.values()) {
+            total += h.getBytesReceived();
+        }
+        return total;
+    }
+
+    public long getBytesSent() {
+        long total = 0;
+        for (HostMetrics h : hosts.values()) {
+            total += h.getBytesSent();
+        }
+        return total;
+    }
+
+    public long getBlastFrames() {
+        long total = 0;
+        for (HostMetrics h : hosts.values()) {
+            total += h.getBlastFrames();
+        }
+        return total;
+    }
+
+    public double getBlastFrameRate() {
+        long elapsed = getElapsedNanos();
+        return elapsed > 0 ? getBlastFrames() * 1e9 / elapsed : 0;
+    }
+
+    public int getQueueDepth() {
+        BlastQueue q = queue;
+        return q != null ? q.size() : 0;
+    }
+
+    public int getQueueCapacity() {
+        BlastQueue q = queue;
+        return q != null ? q.capacity() : 0;
+    }
+
+    public LatencySnapshot getQueueWait() {
+        return queueWait.snapshot();
+    }
+
+    public int getLiveConnections() {
+        int live = 0;
+        for (HostMetrics h : hosts.values()) {
+            if (h.isConnected()) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    public Map<Integer, LatencySnapshot> getRpcLatency() {
+        Map<Integer, LatencyHistogram> totals =
+                new HashMap<Integer, LatencyHistogram>();
+        for (HostMetrics h : hosts.values()) {
+            h.addRpcLatency(totals);
+        }
+        return HostMetrics.snapshot(totals);
+    }
+
+    public String[] getHosts() {
+        return hosts.keySet().toArray(new String[0]);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.util.Map;
+
+/**
+ * Client-side metrics for one {@link Search}.  Registered with the platform
+ * MBean server as
+ * <code>edu.cmu.cs.diamond.opendiamond:type=Search,id=N</code> while the
+ * search is open, and available from {@link Search#getMetrics()}.
+ */
+public interface SearchMetricsMXBean {
+    /**
+     * Gets the number of results returned by the search so far.
+     */
+    long getResultCount();
+
+    /**
+     * Gets the time from search creation to the first result, or -1 if
+     * there has been no result yet.
+     */
+    long getTimeToFirstResultNanos();
+
+    long getElapsedNanos();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getBlastFrames();
+
+    /**
+     * Gets the average number of blast frames received per second since
+     * the search was created.
+     */
+    double getBlastFrameRate();
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    /**
+     * Gets the time consumers spent waiting for the result queue.
+     */
+    LatencySnapshot getQueueWait();
+
+    int getLiveConnections();
+
+    /**
+     * Gets RPC latency across all servers, keyed by RPC command number.
+     */
+    Map<Integer, LatencySnapshot> getRpcLatency();
+
+    String[] getHosts();
+}
@@ -61,6 +61,16 @@ public class ServerStatistics {
         return Collections.unmodifiableMap(filterStatistics);
     }
 
+    // The maps behind getServerStats() and getFilterStats(), for callers
+    // which must not allocate
+    Map<String, Long> getServerStatsMap() {
+        return serverStatistics;
+    }
+
+    Map<String, FilterStatistics> getFilterStatsMap() {
+        return filterStatistics;
+    }
+
     /**
      * Helper method for getDroppedObjects, getProcessedObjects(),
      * getTotalObjects()
@@ -0,0 +1,310 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Synchronizes session variables between the client and all servers of a
+ * search.
+ * <p>
+ * Variable names are interned to indices, and values are summed into
+ * <code>double</code> arrays.  Each server's variables are fetched and
+ * added to the sum by a task for that server.  The last task to finish
+ * computes the new values and encodes them once, and then every task
+ * sends them to its own server straight away, so a merge is a single
+ * fan-out rather than separate get and set rounds.
+ * <p>
+ * Callers must serialize use of the control channels, as with any other
+ * RPC.
+ */
+class SessionVariableEngine {
+    private final ConnectionSet cs;
+
+    private final Map<String, Integer> ids =
+            new ConcurrentHashMap<String, Integer>();
+
+    // indexed by id; entries below count are immutable once published
+    private volatile String[] names = new String[16];
+
+    private volatile byte[][] encodedNames = new byte[16][];
+
+    private volatile int count;
+
+    // the global values kept by auto-merge, or null before the first
+    private Values autoValues;
+
+    // Values indexed by id, with the ids which are set
+    private static class Values {
+        private double[] values;
+
+        private boolean[] present;
+
+        private Values(int size) {
+            values = new double[size];
+            present = new boolean[size];
+        }
+
+        private void ensureSize(int size) {
+            if (values.length < size) {
+                values = Arrays.copyOf(values, size);
+                present = Arrays.copyOf(present, size);
+            }
+        }
+    }
+
+    SessionVariableEngine(ConnectionSet cs) {
+        this.cs = cs;
+    }
+
+    private int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            int n = count;
+            if (n == names.length) {
+                names = Arrays.copyOf(names, n * 2);
+                encodedNames = Arrays.copyOf(encodedNames, n * 2);
+            }
+            names[n] = name;
+            encodedNames[n] = XDREncoders.encodeString(name);
+            count = n + 1;
+            ids.put(name, n);
+            return n;
+        }
+    }
+
+    /**
+     * Adds the servers' values to the given global values, and sets the
+     * result on all servers.  The map is updated in place.
+     */
+    void merge(Map<String, Double> globalValues) throws IOException,
+            InterruptedException {
+        Values global = new Values(count + globalValues.size());
+        for (Map.Entry<String, Double> e : globalValues.entrySet()) {
+            int id = intern(e.getKey());
+            global.ensureSize(id + 1);
+            global.values[id] = e.getValue();
+            global.present[id] = true;
+        }
+
+        Values result = run(global);
+
+        String[] n = names;
+        for (int i = 0; i < result.present.length; i++) {
+            if (result.present[i]) {
+                globalValues.put(n[i], result.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Sets every variable on every server to zero.
+     *
+     * @return the variables which were cleared
+     */
+    Map<String, Double> clear() throws IOException, InterruptedException {
+        return toMap(run(null));
+    }
+
+    /**
+     * Merges into the global values kept by auto-merge.
+     *
+     * @return the new global values
+     */
+    Map<String, Double> autoMerge() throws IOException,
+            InterruptedException {
+        Values global = autoValues != null ? autoValues : new Values(0);
+        autoValues = run(global);
+        return toMap(autoValues);
+    }
+
+    private Map<String, Double> toMap(Values v) {
+        String[] n = names;
+        Map<String, Double> map = new HashMap<String, Double>();
+        for (int i = 0; i < v.present.length; i++) {
+            if (v.present[i]) {
+                map.put(n[i], v.values[i]);
+            }
+        }
+        return map;
+    }
+
+    // One merge or clear across all servers
+    private final class Round {
+        // null when clearing
+        private final Values global;
+
+        private final Values sums = new Values(count);
+
+        private final AtomicInteger remaining = new AtomicInteger(cs.size());
+
+        private final CompletableFuture<byte[]> setData =
+                new CompletableFuture<byte[]>();
+
+        private Values result;
+
+        private Round(Values global) {
+            this.global = global;
+        }
+
+        private void add(XDRGetter data) throws IOException {
+            int len = data.getInt();
+            int[] hostIds = new int[len];
+            double[] hostValues = new double[len];
+            int max = -1;
+            for (int i = 0; i < len; i++) {
+                hostIds[i] = intern(data.getString());
+                hostValues[i] = data.getDouble();
+                max = Math.max(max, hostIds[i]);
+            }
+
+            synchronized (sums) {
+                sums.ensureSize(max + 1);
+                for (int i = 0; i < len; i++) {
+                    sums.values[hostIds[i]] += hostValues[i];
+                    sums.present[hostIds[i]] = true;
+                }
+            }
+        }
+
+        private void hostDone() {
+            if (remaining.decrementAndGet() == 0) {
+                try {
+                    finish();
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void finish() {
+            int size = count;
+            Values out = new Values(size);
+            synchronized (sums) {
+                sums.ensureSize(size);
+                if (global != null) {
+                    global.ensureSize(size);
+                }
+                for (int i = 0; i < size; i++) {
+                    if (global == null) {
+                        out.present[i] = sums.present[i];
+                    } else {
+                        out.present[i] = sums.present[i] || global.present[i];
+                        out.values[i] = global.values[i] + sums.values[i];
+                    }
+                }
+            }
+            result = out;
+            setData.complete(encode(out));
+        }
+
+        private void fail(Throwable t) {
+            setData.completeExceptionally(t);
+        }
+    }
+
+    private byte[] encode(Values v) {
+        byte[][] encoded = encodedNames;
+        int n = 0;
+        int size = 4;
+        for (int i = 0; i < v.present.length; i++) {
+            if (v.present[i]) {
+                n++;
+                size += encoded[i].length + 8;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(n);
+        for (int i = 0; i < v.present.length; i++) {
+            if (v.present[i]) {
+                buf.put(encoded[i]);
+                buf.putDouble(v.values[i]);
+            }
+        }
+        return buf.array();
+    }
+
+    private Values run(Values global) throws IOException,
+            InterruptedException {
+        final Round round = new Round(global);
+        if (cs.size() == 0) {
+            round.finish();
+            return round.result;
+        }
+
+        CompletionService<Object> replies = cs
+                .runOnAllServers(new ConnectionFunction<Object>() {
+                    public Callable<Object> createCallable(final Connection c) {
+                        return new Callable<Object>() {
+                            public Object call() throws Exception {
+                                return sync(c, round);
+                            }
+                        };
+                    }
+                });
+
+        try {
+            Util.checkResultsForIOException(cs.size(), replies);
+        } catch (IOException | InterruptedException e) {
+            // release tasks waiting for the other servers
+            round.fail(e);
+            throw e;
+        }
+        return round.result;
+    }
+
+    private Object sync(Connection c, Round round) throws Exception {
+        try {
+            // session_variables_get = 18
+            MiniRPCReply reply = new RPC(c, c.getHostname(), 18,
+                    new byte[0]).doRPC();
+            reply.checkStatus();
+            round.add(reply.getMessage().getData());
+        } catch (Exception e) {
+            round.fail(e);
+            throw e;
+        }
+        round.hostDone();
+
+        // the search's executor is unbounded, so waiting here can't keep
+        // another server's task from running
+        byte[] data;
+        try {
+            data = round.setData.get();
+        } catch (ExecutionException e) {
+            // another server failed, and reports it
+            return null;
+        }
+
+        // session_variables_set = 19
+        new RPC(c, c.getHostname(), 19, data).doRPC().checkStatus();
+        return null;
+    }
+}
@@ -39,6 +39,14 @@ class Signature {
         return Arrays.hashCode(digest);
     }
 
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Signature)) {
+            return false;
+        }
+        return Arrays.equals(digest, ((Signature) obj).digest);
+    }
+
     public byte[] asBytes() {
         byte[] ret = new byte[SIG_SIZE];
         System.arraycopy(digest, 0, ret, 0, SIG_SIZE);
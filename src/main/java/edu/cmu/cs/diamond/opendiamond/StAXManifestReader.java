@@ -0,0 +1,372 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import edu.cmu.cs.diamond.opendiamond.bundle.*;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a bundle manifest into the {@link PredicateSpec} object model with
+ * a streaming parser, avoiding the cost of initializing JAXB.
+ * <p>
+ * Unknown elements and attributes are ignored, as with JAXB.  If a schema
+ * is supplied, the manifest is validated against it before it is parsed.
+ */
+class StAXManifestReader {
+    private static final String NS =
+            "http://diamond.cs.cmu.edu/xmlns/opendiamond/bundle-1";
+
+    private static final Pattern DECIMAL = Pattern.compile(
+            "[+-]?([0-9]+(\\.[0-9]*)?|\\.[0-9]+)([eE][+-]?[0-9]+)?");
+
+    private static final XMLInputFactory factory;
+
+    static {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final PredicateSpec spec;
+
+    private final BundleType type;
+
+    public StAXManifestReader(InputStream in, Schema schema)
+            throws IOException {
+        if (schema != null) {
+            byte[] data = Util.readFully(in);
+            try {
+                schema.newValidator().validate(new StreamSource(
+                        new ByteArrayInputStream(data)));
+            } catch (SAXException e) {
+                throw new BundleFormatException(e.getMessage());
+            }
+            in = new ByteArrayInputStream(data);
+        }
+
+        try {
+            XMLStreamReader r = factory.createXMLStreamReader(in);
+            try {
+                r.nextTag();
+                type = BundleType.fromTag(r.getLocalName());
+                spec = readPredicate(r);
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new BundleFormatException(e.getMessage());
+        }
+    }
+
+    public PredicateSpec getSpec() {
+        return spec;
+    }
+
+    public BundleType getType() {
+        return type;
+    }
+
+    private static PredicateSpec readPredicate(XMLStreamReader r)
+            throws XMLStreamException, BundleFormatException {
+        PredicateSpec p = new PredicateSpec();
+        p.setDisplayName(r.getAttributeValue(null, "displayName"));
+        while (nextChild(r)) {
+            String name = r.getLocalName();
+            if (name.equals("options")) {
+                p.setOptionList(readOptionList(r));
+            } else if (name.equals("filters")) {
+                p.setFilterList(readFilterList(r));
+            } else {
+                skip(r);
+            }
+        }
+        return p;
+    }
+
+    private static OptionList readOptionList(XMLStreamReader r)
+            throws XMLStreamException, BundleFormatException {
+        OptionList l = new OptionList();
+        while (nextChild(r)) {
+            if (r.getLocalName().equals("optionGroup")) {
+                OptionGroup g = new OptionGroup();
+                g.setDisplayName(r.getAttributeValue(null, "displayName"));
+                while (nextChild(r)) {
+                    addOption(r, g.getOptions());
+                }
+                l.getOptionGroups().add(g);
+            } else {
+                addOption(r, l.getOptions());
+            }
+        }
+        return l;
+    }
+
+    private static void addOption(XMLStreamReader r, List<Option> options)
+            throws XMLStreamException, BundleFormatException {
+        String name = r.getLocalName();
+        Option opt;
+        if (name.equals("stringOption")) {
+            StringOption o = new StringOption();
+            o.setDefault(r.getAttributeValue(null, "default"));
+            o.setMultiLine(getBoolean(r, "multiLine"));
+            o.setWidth(getInteger(r, "width"));
+            o.setHeight(getInteger(r, "height"));
+            o.setInitiallyEnabled(getBoolean(r, "initiallyEnabled"));
+            o.setDisabledValue(r.getAttributeValue(null, "disabledValue"));
+            opt = o;
+        } else if (name.equals("numberOption")) {
+            NumberOption o = new NumberOption();
+            o.setDefault(getDouble(r, "default"));
+            o.setMin(getDouble(r, "min"));
+            o.setMax(getDouble(r, "max"));
+            o.setStep(getDouble(r, "step"));
+            o.setInitiallyEnabled(getBoolean(r, "initiallyEnabled"));
+            o.setDisabledValue(getDouble(r, "disabledValue"));
+            opt = o;
+        } else if (name.equals("booleanOption")) {
+            BooleanOption o = new BooleanOption();
+            o.setDefault(getBoolean(r, "default"));
+            opt = o;
+        } else if (name.equals("choiceOption")) {
+            ChoiceOption o = new ChoiceOption();
+            o.setInitiallyEnabled(getBoolean(r, "initiallyEnabled"));
+            o.setDisabledValue(r.getAttributeValue(null, "disabledValue"));
+            setOptionNames(r, o);
+            while (nextChild(r)) {
+                if (r.getLocalName().equals("choice")) {
+                    Choice c = new Choice();
+                    c.setDisplayName(r.getAttributeValue(null,
+                            "displayName"));
+                    c.setValue(r.getAttributeValue(null, "value"));
+                    c.setDefault(getBoolean(r, "default"));
+                    o.getChoices().add(c);
+                }
+                skip(r);
+            }
+            options.add(o);
+            return;
+        } else if (name.equals("exampleOption")) {
+            opt = new ExampleOption();
+        } else if (name.equals("fileOption")) {
+            opt = new FileOption();
+        } else {
+            skip(r);
+            return;
+        }
+        setOptionNames(r, opt);
+        skip(r);
+        options.add(opt);
+    }
+
+    private static void setOptionNames(XMLStreamReader r, Option opt) {
+        opt.setDisplayName(r.getAttributeValue(null, "displayName"));
+        opt.setName(r.getAttributeValue(null, "name"));
+    }
+
+    private static FilterList readFilterList(XMLStreamReader r)
+            throws XMLStreamException, BundleFormatException {
+        FilterList l = new FilterList();
+        while (nextChild(r)) {
+            if (r.getLocalName().equals("filter")) {
+                l.getFilters().add(readFilter(r));
+            } else {
+                skip(r);
+            }
+        }
+        return l;
+    }
+
+    private static FilterSpec readFilter(XMLStreamReader r)
+            throws XMLStreamException, BundleFormatException {
+        FilterSpec f = new FilterSpec();
+        f.setFixedName(r.getAttributeValue(null, "fixedName"));
+        f.setLabel(r.getAttributeValue(null, "label"));
+        f.setCode(r.getAttributeValue(null, "code"));
+        while (nextChild(r)) {
+            String name = r.getLocalName();
+            if (name.equals("minScore")) {
+                f.setMinScore(readThreshold(r));
+            } else if (name.equals("maxScore")) {
+                f.setMaxScore(readThreshold(r));
+            } else if (name.equals("dependencies")) {
+                FilterDependencyList l = new FilterDependencyList();
+                while (nextChild(r)) {
+                    if (r.getLocalName().equals("dependency")) {
+                        FilterDependencySpec d = new FilterDependencySpec();
+                        d.setLabel(r.getAttributeValue(null, "label"));
+                        d.setFixedName(r.getAttributeValue(null,
+                                "fixedName"));
+                        l.getDependencies().add(d);
+                    }
+                    skip(r);
+                }
+                f.setDependencyList(l);
+            } else if (name.equals("arguments")) {
+                FilterArgumentList l = new FilterArgumentList();
+                while (nextChild(r)) {
+                    if (r.getLocalName().equals("argument")) {
+                        FilterArgumentSpec a = new FilterArgumentSpec();
+                        a.setOption(r.getAttributeValue(null, "option"));
+                        a.setLabel(r.getAttributeValue(null, "label"));
+                        a.setValue(r.getAttributeValue(null, "value"));
+                        l.getArguments().add(a);
+                    }
+                    skip(r);
+                }
+                f.setArgumentList(l);
+            } else if (name.equals("blob")) {
+                f.setBlob(readBlob(r));
+            } else {
+                skip(r);
+            }
+        }
+        return f;
+    }
+
+    private static FilterThresholdSpec readThreshold(XMLStreamReader r)
+            throws XMLStreamException, BundleFormatException {
+        FilterThresholdSpec t = new FilterThresholdSpec();
+        t.setOption(r.getAttributeValue(null, "option"));
+        t.setValue(getDouble(r, "value"));
+        skip(r);
+        return t;
+    }
+
+    private static FilterBlobArgumentSpec readBlob(XMLStreamReader r)
+            throws XMLStreamException {
+        FilterBlobArgumentSpec b = new FilterBlobArgumentSpec();
+        b.setOption(r.getAttributeValue(null, "option"));
+        b.setData(r.getAttributeValue(null, "data"));
+        while (nextChild(r)) {
+            String name = r.getLocalName();
+            if (name.equals("examples")) {
+                b.setExamples(new FilterBlobExampleSpec());
+            } else if (name.equals("member")) {
+                FilterBlobMemberSpec m = new FilterBlobMemberSpec();
+                m.setFilename(r.getAttributeValue(null, "filename"));
+                m.setOption(r.getAttributeValue(null, "option"));
+                m.setData(r.getAttributeValue(null, "data"));
+                b.getMembers().add(m);
+            }
+            skip(r);
+        }
+        return b;
+    }
+
+    // Advance to the next child element in our namespace, skipping
+    // anything else.  Returns false at the end of the current element.
+    private static boolean nextChild(XMLStreamReader r)
+            throws XMLStreamException {
+        while (true) {
+            int event = r.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if (NS.equals(r.getNamespaceURI())) {
+                    return true;
+                }
+                skip(r);
+            } else if (event == XMLStreamConstants.END_DOCUMENT) {
+                throw new XMLStreamException("Unexpected end of manifest");
+            }
+        }
+    }
+
+    // Skip to the end of the current element.
+    private static void skip(XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.END_DOCUMENT) {
+                throw new XMLStreamException("Unexpected end of manifest");
+            }
+        }
+    }
+
+    // XML Schema lexical forms, as parsed by JAXB
+
+    private static Boolean getBoolean(XMLStreamReader r, String name)
+            throws BundleFormatException {
+        String value = r.getAttributeValue(null, name);
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (value.equals("true") || value.equals("1")) {
+            return Boolean.TRUE;
+        } else if (value.equals("false") || value.equals("0")) {
+            return Boolean.FALSE;
+        }
+        throw badValue(name, value);
+    }
+
+    private static Integer getInteger(XMLStreamReader r, String name)
+            throws BundleFormatException {
+        String value = r.getAttributeValue(null, name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            String s = value.trim();
+            if (s.startsWith("+")) {
+                s = s.substring(1);
+            }
+            return Integer.valueOf(s);
+        } catch (NumberFormatException e) {
+            throw badValue(name, value);
+        }
+    }
+
+    private static Double getDouble(XMLStreamReader r, String name)
+            throws BundleFormatException {
+        String value = r.getAttributeValue(null, name);
+        if (value == null) {
+            return null;
+        }
+        String s = value.trim();
+        if (s.equals("INF") || s.equals("+INF")) {
+            return Double.POSITIVE_INFINITY;
+        } else if (s.equals("-INF")) {
+            return Double.NEGATIVE_INFINITY;
+        } else if (s.equals("NaN")) {
+            return Double.NaN;
+        }
+        // reject Java-only spellings such as "Infinity" and "1d"
+        if (!DECIMAL.matcher(s).matches()) {
+            throw badValue(name, value);
+        }
+        return Double.valueOf(s);
+    }
+
+    private static BundleFormatException badValue(String name, String value) {
+        return new BundleFormatException("Invalid value \"" + value +
+                "\" for attribute \"" + name + "\"");
+    }
+}
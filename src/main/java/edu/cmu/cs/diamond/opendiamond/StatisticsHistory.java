@@ -0,0 +1,255 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A fixed-size history of the statistics of a search, summed over all
+ * servers.
+ * <p>
+ * Each sample is a row of <code>long</code> columns, one per server
+ * statistic and one per filter statistic.  Columns are assigned the first
+ * time a name is seen.  Rows are allocated up front and reused once the
+ * history is full, so recording a sample does not allocate unless a new
+ * statistic appears.  The oldest samples are discarded first.  Series
+ * are returned oldest first.
+ */
+public final class StatisticsHistory {
+    private static final int DEFAULT_CAPACITY = 600;
+
+    private final int capacity;
+
+    private final long[] times;
+
+    private long[][] rows;
+
+    // index of the next row to be written
+    private int next;
+
+    private int size;
+
+    private int columns;
+
+    private final Map<String, Integer> serverColumns =
+            new ConcurrentHashMap<String, Integer>();
+
+    private final Map<String, Map<String, Integer>> filterColumns =
+            new ConcurrentHashMap<String, Map<String, Integer>>();
+
+    StatisticsHistory() {
+        this(Integer.getInteger(
+                "edu.cmu.cs.diamond.opendiamond.statistics.historysize",
+                DEFAULT_CAPACITY));
+    }
+
+    StatisticsHistory(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        times = new long[capacity];
+        rows = new long[capacity][16];
+    }
+
+    // Adds a sample, replacing the oldest one if the history is full
+    synchronized void record(long time,
+            Map<String, ServerStatistics> statistics) {
+        // assign columns first, so the row doesn't move while filling it
+        for (ServerStatistics ss : statistics.values()) {
+            for (String name : ss.getServerStatsMap().keySet()) {
+                intern(serverColumns, name);
+            }
+            for (FilterStatistics fs : ss.getFilterStatsMap().values()) {
+                Map<String, Integer> m = filterColumns.get(fs.getName());
+                if (m == null) {
+                    m = new ConcurrentHashMap<String, Integer>();
+                    filterColumns.put(fs.getName(), m);
+                }
+                for (String name : fs.getFilterStats().keySet()) {
+                    intern(m, name);
+                }
+            }
+        }
+
+        long[] row = rows[next];
+        Arrays.fill(row, 0);
+        for (ServerStatistics ss : statistics.values()) {
+            for (Map.Entry<String, Long> e : ss.getServerStatsMap()
+                    .entrySet()) {
+                row[serverColumns.get(e.getKey())] += e.getValue();
+            }
+            for (FilterStatistics fs : ss.getFilterStatsMap().values()) {
+                Map<String, Integer> m = filterColumns.get(fs.getName());
+                for (Map.Entry<String, Long> e : fs.getFilterStats()
+                        .entrySet()) {
+                    row[m.get(e.getKey())] += e.getValue();
+                }
+            }
+        }
+        times[next] = time;
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    // A copy of the newest row
+    synchronized long[] getLatest() {
+        if (size == 0) {
+            return new long[0];
+        }
+        long[] row = rows[(next - 1 + capacity) % capacity];
+        return Arrays.copyOf(row, columns);
+    }
+
+    private void intern(Map<String, Integer> map, String name) {
+        if (map.containsKey(name)) {
+            return;
+        }
+        if (columns == rows[0].length) {
+            // grow every row; older samples read as zero
+            for (int i = 0; i < capacity; i++) {
+                rows[i] = Arrays.copyOf(rows[i], columns * 2);
+            }
+        }
+        map.put(name, columns++);
+    }
+
+    // The column of a server statistic, or -1
+    int getColumn(String stat) {
+        Integer col = serverColumns.get(stat);
+        return col != null ? col : -1;
+    }
+
+    // The column of a filter statistic, or -1
+    int getColumn(String filter, String stat) {
+        Map<String, Integer> m = filterColumns.get(filter);
+        Integer col = m != null ? m.get(stat) : null;
+        return col != null ? col : -1;
+    }
+
+    /**
+     * Gets the maximum number of samples kept.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of samples currently kept.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the names of the server statistics seen so far.
+     */
+    public Set<String> getStatNames() {
+        return Collections.unmodifiableSet(serverColumns.keySet());
+    }
+
+    /**
+     * Gets the names of the filters seen so far.
+     */
+    public Set<String> getFilterNames() {
+        return Collections.unmodifiableSet(filterColumns.keySet());
+    }
+
+    /**
+     * Gets the names of the statistics seen so far for one filter.
+     *
+     * @return the names, or an empty set if the filter is unknown
+     */
+    public Set<String> getFilterStatNames(String filter) {
+        Map<String, Integer> m = filterColumns.get(filter);
+        if (m == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(m.keySet());
+    }
+
+    /**
+     * Gets the times at which the samples were taken.
+     *
+     * @return milliseconds since the epoch, oldest first
+     */
+    public synchronized long[] getTimes() {
+        long[] result = new long[size];
+        int first = first();
+        for (int i = 0; i < size; i++) {
+            result[i] = times[(first + i) % capacity];
+        }
+        return result;
+    }
+
+    /**
+     * Gets the history of a server statistic summed over all servers.
+     *
+     * @return one value per sample, oldest first; all zero if the
+     *         statistic has never been reported
+     */
+    public synchronized long[] getSeries(String stat) {
+        return series(getColumn(stat));
+    }
+
+    /**
+     * Gets the history of a filter statistic summed over all servers.
+     *
+     * @return one value per sample, oldest first; all zero if the
+     *         statistic has never been reported
+     */
+    public synchronized long[] getFilterSeries(String filter, String stat) {
+        return series(getColumn(filter, stat));
+    }
+
+    /**
+     * Gets the per-second rate of change of a server statistic summed
+     * over all servers, between each sample and the one before it.
+     *
+     * @return one value per sample after the first, oldest first
+     */
+    public synchronized double[] getRateSeries(String stat) {
+        long[] values = series(getColumn(stat));
+        long[] t = getTimes();
+        double[] result = new double[Math.max(0, size - 1)];
+        for (int i = 1; i < size; i++) {
+            long ms = t[i] - t[i - 1];
+            if (ms > 0) {
+                result[i - 1] = (values[i] - values[i - 1]) * 1000.0 / ms;
+            }
+        }
+        return result;
+    }
+
+    private int first() {
+        return (next - size + capacity) % capacity;
+    }
+
+    private long[] series(int col) {
+        long[] result = new long[size];
+        if (col < 0) {
+            return result;
+        }
+        int first = first();
+        for (int i = 0; i < size; i++) {
+            result[i] = rows[(first + i) % capacity][col];
+        }
+        return result;
+    }
+}
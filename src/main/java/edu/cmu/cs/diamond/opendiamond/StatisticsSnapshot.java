@@ -0,0 +1,258 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The statistics of a search at one point in time, together with rates
+ * derived from the previous snapshot.  Rates are in objects per second;
+ * they are zero in the first snapshot of a search.
+ */
+public final class StatisticsSnapshot {
+    private final long time;
+
+    private final long nanoTime;
+
+    private final Map<String, ServerStatistics> statistics;
+
+    private final StatisticsHistory history;
+
+    // server and filter statistics summed over all servers
+    private final long[] totals;
+
+    private final long totalObjects;
+
+    private final long processedObjects;
+
+    private final long droppedObjects;
+
+    private final Map<String, Double> processedRates =
+            new HashMap<String, Double>();
+
+    private final Map<String, Double> droppedRates =
+            new HashMap<String, Double>();
+
+    private final Map<String, Double> filterPassRates =
+            new HashMap<String, Double>();
+
+    private double processedRate;
+
+    private double droppedRate;
+
+    StatisticsSnapshot(Map<String, ServerStatistics> statistics,
+            StatisticsSnapshot previous, StatisticsHistory history) {
+        this.time = System.currentTimeMillis();
+        this.nanoTime = System.nanoTime();
+        this.statistics = Collections.unmodifiableMap(
+                new HashMap<String, ServerStatistics>(statistics));
+        this.history = history;
+
+        history.record(time, statistics);
+        totals = history.getLatest();
+        totalObjects = getTotal(ServerStatistics.TOTAL_OBJECTS);
+        processedObjects = getTotal(ServerStatistics.PROCESSED_OBJECTS);
+        droppedObjects = getTotal(ServerStatistics.DROPPED_OBJECTS);
+
+        for (String filter : history.getFilterNames()) {
+            long processed = getFilterTotal(filter,
+                    FilterStatistics.PROCESSED_OBJECTS);
+            long dropped = getFilterTotal(filter,
+                    FilterStatistics.DROPPED_OBJECTS);
+            if (processed > 0) {
+                filterPassRates.put(filter,
+                        (double) (processed - dropped) / processed);
+            }
+        }
+
+        double seconds = previous != null ?
+                (nanoTime - previous.nanoTime) / 1e9 : 0;
+        for (Map.Entry<String, ServerStatistics> e : statistics.entrySet()) {
+            String host = e.getKey();
+            double p = 0;
+            double d = 0;
+            ServerStatistics before = previous != null ?
+                    previous.statistics.get(host) : null;
+            if (before != null && seconds > 0) {
+                p = rate(e.getValue(), before,
+                        ServerStatistics.PROCESSED_OBJECTS, seconds);
+                d = rate(e.getValue(), before,
+                        ServerStatistics.DROPPED_OBJECTS, seconds);
+            }
+            processedRates.put(host, p);
+            droppedRates.put(host, d);
+            processedRate += p;
+            droppedRate += d;
+        }
+    }
+
+    private static long get(Map<String, Long> stats, String name) {
+        Long value = stats.get(name);
+        return value != null ? value : 0;
+    }
+
+    private static double rate(ServerStatistics now, ServerStatistics before,
+            String name, double seconds) {
+        long delta = get(now.getServerStats(), name)
+                - get(before.getServerStats(), name);
+        // counters only go backward if the server restarted the search
+        return delta > 0 ? delta / seconds : 0;
+    }
+
+    /**
+     * Gets the time the statistics were collected.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Gets the statistics reported by each server.
+     *
+     * @return a map of hostnames to statistics for each host
+     */
+    public Map<String, ServerStatistics> getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Gets a server statistic summed over all servers.
+     *
+     * @param stat
+     *            the name of the statistic
+     * @return the total, or 0 if no server reported the statistic
+     */
+    public long getTotal(String stat) {
+        return column(history.getColumn(stat));
+    }
+
+    /**
+     * Gets a filter statistic summed over all servers.
+     *
+     * @param filter
+     *            the name of the filter
+     * @param stat
+     *            the name of the statistic
+     * @return the total, or 0 if no server reported the statistic
+     */
+    public long getFilterTotal(String filter, String stat) {
+        return column(history.getColumn(filter, stat));
+    }
+
+    private long column(int col) {
+        // columns added after this snapshot are zero
+        return col >= 0 && col < totals.length ? totals[col] : 0;
+    }
+
+    public long getTotalObjects() {
+        return totalObjects;
+    }
+
+    public long getProcessedObjects() {
+        return processedObjects;
+    }
+
+    public long getDroppedObjects() {
+        return droppedObjects;
+    }
+
+    /**
+     * Gets the fraction of objects processed so far.
+     *
+     * @return a value between 0 and 1, or 0 if the total is not known
+     */
+    public double getProgress() {
+        if (totalObjects <= 0) {
+            return 0;
+        }
+        return Math.min(1.0, (double) processedObjects / totalObjects);
+    }
+
+    /**
+     * Gets the rate at which all servers together are processing objects.
+     */
+    public double getProcessedRate() {
+        return processedRate;
+    }
+
+    /**
+     * Gets the rate at which all servers together are dropping objects.
+     */
+    public double getDroppedRate() {
+        return droppedRate;
+    }
+
+    /**
+     * Gets the rate at which one server is processing objects.
+     *
+     * @param host
+     *            a hostname from {@link #getStatistics()}
+     * @return the rate, or 0 if the host is unknown
+     */
+    public double getProcessedRate(String host) {
+        Double rate = processedRates.get(host);
+        return rate != null ? rate : 0;
+    }
+
+    /**
+     * Gets the rate at which one server is dropping objects.
+     *
+     * @param host
+     *            a hostname from {@link #getStatistics()}
+     * @return the rate, or 0 if the host is unknown
+     */
+    public double getDroppedRate(String host) {
+        Double rate = droppedRates.get(host);
+        return rate != null ? rate : 0;
+    }
+
+    /**
+     * Gets the fraction of objects passed by each filter, over all servers
+     * and the whole search.  Filters which have not yet processed any
+     * objects are omitted.
+     *
+     * @return a map of filter names to pass rates between 0 and 1
+     */
+    public Map<String, Double> getFilterPassRates() {
+        return Collections.unmodifiableMap(filterPassRates);
+    }
+
+    /**
+     * Estimates the time until all objects have been processed, from the
+     * current processing rate.
+     *
+     * @return the estimate in milliseconds, or -1 if it is not known
+     */
+    public long getEstimatedTimeRemaining() {
+        long remaining = totalObjects - processedObjects;
+        if (remaining <= 0) {
+            return totalObjects > 0 ? 0 : -1;
+        }
+        if (processedRate <= 0) {
+            return -1;
+        }
+        return (long) (remaining / processedRate * 1000);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d processed, %d dropped, %.1f/s "
+                + "processed, %.1f/s dropped, eta %dms", processedObjects,
+                totalObjects, droppedObjects, processedRate, droppedRate,
+                getEstimatedTimeRemaining());
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+/**
+ * Receives notice when a server in a search becomes, or stops being, a
+ * straggler.  Methods are called on the thread which fetched the
+ * statistics, and should return quickly.
+ */
+public interface StragglerListener {
+    /**
+     * Called when a server's slowness first exceeds the threshold.
+     *
+     * @param health
+     *            the server's current health
+     */
+    void stragglerDetected(HostHealth health);
+
+    /**
+     * Called when a server previously reported as a straggler catches up
+     * or finishes.
+     *
+     * @param health
+     *            the server's current health
+     */
+    void stragglerRecovered(HostHealth health);
+}
@@ -0,0 +1,66 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A result together with its image, decoded and scaled by a
+ * {@link ThumbnailPipeline}.
+ */
+public final class Thumbnail {
+    private final Result result;
+
+    private final BufferedImage image;
+
+    private final int originalWidth;
+
+    private final int originalHeight;
+
+    Thumbnail(Result result, BufferedImage image, int originalWidth,
+            int originalHeight) {
+        this.result = result;
+        this.image = image;
+        this.originalWidth = originalWidth;
+        this.originalHeight = originalHeight;
+    }
+
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * Gets the scaled image.
+     *
+     * @return the image, or <code>null</code> if the result has no image
+     *         that could be decoded
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Gets the width of the image before scaling, or 0 if there is no image.
+     */
+    public int getOriginalWidth() {
+        return originalWidth;
+    }
+
+    /**
+     * Gets the height of the image before scaling, or 0 if there is no
+     * image.
+     */
+    public int getOriginalHeight() {
+        return originalHeight;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the results of a search and decodes and scales their images on a
+ * pool of worker threads, so that an application gets thumbnails ready to
+ * paint.
+ * <p>
+ * Images are decoded as by {@link Util#extractImageFromResult(Result)},
+ * reusing the rasters of images already scaled, and scaled to fit within
+ * a maximum width and height.  Thumbnails are returned either in the
+ * order the results arrived, or as soon as each is ready.  At most
+ * <code>queueSize</code> results are being decoded or waiting to be taken
+ * at once; beyond that, results are left in the search.
+ * <p>
+ * The pipeline takes over reading results from the search.  It must be
+ * closed when no longer needed; closing it does not close the search.
+ */
+public final class ThumbnailPipeline implements Closeable {
+    private static final AtomicInteger pipelineCount = new AtomicInteger();
+
+    private final Search search;
+
+    private final int maxWidth;
+
+    private final int maxHeight;
+
+    private final boolean fastScaling;
+
+    private final ExecutorService workers;
+
+    // rasters for full-size images, which are dropped once scaled
+    private final RGBImagePool pool;
+
+    // thumbnails in delivery order; DONE after the last result is read
+    private final BlockingQueue<Future<Thumbnail>> queue =
+            new LinkedBlockingQueue<Future<Thumbnail>>();
+
+    private final ExecutorCompletionService<Thumbnail> completion;
+
+    private final Semaphore capacity;
+
+    private final Thread reader;
+
+    private static final Future<Thumbnail> DONE =
+            CompletableFuture.completedFuture(null);
+
+    // results read from the search, valid once DONE is queued
+    private volatile int total;
+
+    private int taken;
+
+    private boolean done;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a pipeline and starts reading results from a search.
+     *
+     * @param search
+     *            the search to read results from
+     * @param maxWidth
+     *            the largest width of a thumbnail
+     * @param maxHeight
+     *            the largest height of a thumbnail
+     * @param threads
+     *            the number of decoding threads
+     * @param queueSize
+     *            the most results to hold at once
+     * @param ordered
+     *            true to return thumbnails in the order the results
+     *            arrived, false to return each as soon as it is ready
+     * @param fastScaling
+     *            true to scale with the fast, low quality algorithm of
+     *            {@link Util#scaleImageFast}
+     */
+    public ThumbnailPipeline(Search search, int maxWidth, int maxHeight,
+            int threads, int queueSize, boolean ordered,
+            boolean fastScaling) {
+        if (maxWidth < 1 || maxHeight < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum dimensions must be positive");
+        }
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException(
+                    "Threads and queue size must be positive");
+        }
+        this.search = search;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.fastScaling = fastScaling;
+        capacity = new Semaphore(queueSize);
+        pool = new RGBImagePool(threads);
+
+        final String name = "thumbnail-pipeline-"
+                + pipelineCount.incrementAndGet();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-decoder-"
+                        + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        completion = ordered ? null
+                : new ExecutorCompletionService<Thumbnail>(workers, queue);
+
+        reader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, name + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read() {
+        int count = 0;
+        try {
+            Result r;
+            while (true) {
+                capacity.acquire();
+                r = search.getNextResult();
+                if (r == null) {
+                    capacity.release();
+                    break;
+                }
+                final Result result = r;
+                Callable<Thumbnail> task = new Callable<Thumbnail>() {
+                    public Thumbnail call() {
+                        return decode(result);
+                    }
+                };
+                if (completion != null) {
+                    completion.submit(task);
+                } else {
+                    queue.add(workers.submit(task));
+                }
+                count++;
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                CompletableFuture<Thumbnail> f =
+                        new CompletableFuture<Thumbnail>();
+                f.completeExceptionally(e);
+                queue.add(f);
+                count++;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+        total = count;
+        queue.add(DONE);
+    }
+
+    private Thumbnail decode(Result result) {
+        BufferedImage img;
+        try {
+            img = Util.extractImageFromResult(result, pool);
+        } catch (RuntimeException e) {
+            // a corrupt image shouldn't stop the pipeline
+            e.printStackTrace();
+            img = null;
+        }
+        if (img == null) {
+            return new Thumbnail(result, null, 0, 0);
+        }
+        int w = img.getWidth();
+        int h = img.getHeight();
+        double scale = Util.getScaleForResize(w, h, maxWidth, maxHeight);
+        BufferedImage thumb = img;
+        if (scale < 1.0) {
+            thumb = fastScaling ? Util.scaleImageFast(img, scale)
+                    : Util.scaleImage(img, scale);
+            pool.release(img);
+        }
+        return new Thumbnail(result, thumb, w, h);
+    }
+
+    /**
+     * Blocks and returns the next thumbnail, or <code>null</code> once the
+     * search has no more results.
+     *
+     * @return the next thumbnail, or <code>null</code> if there are no more
+     * @throws IOException
+     *             if reading from the search failed, in which case the
+     *             pipeline is closed
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public synchronized Thumbnail getNextThumbnail() throws IOException,
+            InterruptedException {
+        while (true) {
+            if (closed) {
+                throw new SearchClosedException();
+            }
+            if (done && taken == total) {
+                return null;
+            }
+            Future<Thumbnail> f = queue.take();
+            if (f == DONE) {
+                done = true;
+                continue;
+            }
+            taken++;
+            capacity.release();
+            try {
+                return f.get();
+            } catch (ExecutionException e) {
+                close();
+                IOException e2 = new IOException();
+                e2.initCause(e.getCause());
+                throw e2;
+            }
+        }
+    }
+
+    /**
+     * Stops reading results and decoding images.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // the reader holds no locks while waiting for a result
+        reader.interrupt();
+        workers.shutdownNow();
+        // wake a caller waiting for a thumbnail that will never come
+        queue.add(DONE);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ *  The OpenDiamond Platform for Interactive Search
+ *
+ *  Copyright (c) 2011 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  This software is distributed under the terms of the Eclipse Public
+ *  License, Version 1.0 which can be found in the file named LICENSE.
+ *  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ *  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+ */
+
+package edu.cmu.cs.diamond.opendiamond;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+
+/**
+ * Keeps the <i>k</i> results with the best value of a numeric attribute,
+ * such as a filter score.
+ * <p>
+ * The candidates are kept in a binary heap of scores with the worst
+ * candidate on top, so a result which cannot make the top <i>k</i> is
+ * rejected after one comparison and is not retained.  If the collector is
+ * created with <code>retainData</code> false, candidates are stripped to
+ * their object identifier and score when they are offered, and
+ * {@link #fetchResults} fetches the full results for the final winners
+ * only.
+ * <p>
+ * Results without the attribute, or whose value is not a number, are
+ * rejected.  This class is thread-safe.
+ */
+public final class TopKCollector {
+    private static final int PIPELINE_WINDOW = 16;
+
+    private final String attribute;
+
+    private final int k;
+
+    private final boolean highest;
+
+    private final boolean retainData;
+
+    // heap[0] is the worst candidate; sign-adjusted so that smaller is
+    // worse in both orders
+    private final double[] heap;
+
+    private final int[] slots;
+
+    private final Result[] results;
+
+    private final double[] scores;
+
+    private int size;
+
+    private long offered;
+
+    /**
+     * Creates a collector.
+     *
+     * @param attribute
+     *            the name of the attribute to rank results by, for example
+     *            {@link ScoredResultStore#getScoreAttribute(String)}
+     * @param k
+     *            the number of results to keep
+     * @param highest
+     *            true to keep the results with the highest values, false to
+     *            keep the lowest
+     * @param retainData
+     *            false to keep only the identifier and value of each
+     *            candidate
+     */
+    public TopKCollector(String attribute, int k, boolean highest,
+            boolean retainData) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.attribute = attribute;
+        this.k = k;
+        this.highest = highest;
+        this.retainData = retainData;
+        heap = new double[k];
+        slots = new int[k];
+        results = new Result[k];
+        scores = new double[k];
+    }
+
+    /**
+     * Offers a result to the collector.
+     *
+     * @param result
+     *            the result
+     * @return true if the result is among the best <i>k</i> so far
+     */
+    public synchronized boolean offer(Result result) {
+        offered++;
+        double score = ScoredResultStore.parseScore(result
+                .getValue(attribute));
+        if (Double.isNaN(score)) {
+            return false;
+        }
+        double key = highest ? score : -score;
+
+        int slot;
+        if (size < k) {
+            slot = size;
+            int i = size++;
+            // sift up
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= key) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                slots[i] = slots[parent];
+                i = parent;
+            }
+            heap[i] = key;
+            slots[i] = slot;
+        } else {
+            if (key <= heap[0]) {
+                return false;
+            }
+            // replace the worst candidate, reusing its slot
+            slot = slots[0];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= key) {
+                    break;
+                }
+                heap[i] = heap[child];
+                slots[i] = slots[child];
+                i = child;
+            }
+            heap[i] = key;
+            slots[i] = slot;
+        }
+
+        results[slot] = retainData ? result : strip(result);
+        scores[slot] = score;
+        return true;
+    }
+
+    private Result strip(Result result) {
+        Map<String, byte[]> attrs = new HashMap<String, byte[]>();
+        for (String name : new String[] { "_ObjectID", "Device-Name",
+                attribute }) {
+            byte[] v = result.getValue(name);
+            if (v != null) {
+                attrs.put(name, v);
+            }
+        }
+        return new Result(attrs, result.getObjectIdentifier()
+                .getHostname());
+    }
+
+    /**
+     * Offers every remaining result of a search to the collector.
+     *
+     * @param search
+     *            the search
+     * @throws IOException
+     *             if an IO error occurs
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public void drain(Search search) throws IOException,
+            InterruptedException {
+        Result r;
+        while ((r = search.getNextResult()) != null) {
+            offer(r);
+        }
+    }
+
+    /**
+     * Gets the value a new result must beat to be kept, or NaN if fewer
+     * than <i>k</i> results have been kept.
+     */
+    public synchronized double getThreshold() {
+        if (size < k) {
+            return Double.NaN;
+        }
+        return highest ? heap[0] : -heap[0];
+    }
+
+    /**
+     * Gets the number of results offered so far.
+     */
+    public synchronized long getOfferedCount() {
+        return offered;
+    }
+
+    /**
+     * Gets the kept results, best first.  If the collector does not retain
+     * data, they hold only the object identifier and the ranking attribute.
+     *
+     * @return the results
+     */
+    public synchronized List<Result> getResults() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = Double.compare(scores[a], scores[b]);
+                return highest ? -c : c;
+            }
+        });
+        List<Result> list = new ArrayList<Result>(size);
+        for (Integer slot : order) {
+            list.add(results[slot]);
+        }
+        return list;
+    }
+
+    /**
+     * Fetches the full results for the kept results, best first, by
+     * reexecuting them on their servers.  Requests to each server are
+     * pipelined, and servers are contacted in parallel.  Objects the
+     * servers no longer have are left out.
+     *
+     * @param factory
+     *            the search factory which created the search
+     * @param desiredAttributes
+     *            a set of attribute names to fetch. May be
+     *            <code>null</code>, in which case all attributes will be
+     *            included.
+     * @return the results
+     * @throws IOException
+     *             if an IO error occurs
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    public List<Result> fetchResults(SearchFactory factory,
+            Set<String> desiredAttributes) throws IOException,
+            InterruptedException {
+        final Set<String> attributes = (desiredAttributes == null ||
+                desiredAttributes.isEmpty()) ? null : desiredAttributes;
+        List<Result> winners = getResults();
+        Map<String, List<Result>> byHost =
+                new LinkedHashMap<String, List<Result>>();
+        // check every host before starting any fetches, so a missing
+        // cookie doesn't leave fetches running that nothing waits for
+        for (Result r : winners) {
+            String host = r.getObjectIdentifier().getHostname();
+            List<Result> l = byHost.get(host);
+            if (l == null) {
+                if (factory.getCookieMap().get(host) == null) {
+                    throw new IOException("No cookie found for host "
+                            + host);
+                }
+                l = new ArrayList<Result>();
+                byHost.put(host, l);
+            }
+            l.add(r);
+        }
+
+        final List<Filter> filters = factory.getReexecutionFilters();
+        final Map<Result, Result> fetched = Collections
+                .synchronizedMap(new HashMap<Result, Result>());
+        CompletionService<Object> cs = new ExecutorCompletionService<Object>(
+                factory.getExecutor());
+        for (Map.Entry<String, List<Result>> e : byHost.entrySet()) {
+            final String host = e.getKey();
+            final List<Cookie> cookies = factory.getCookieMap().get(host);
+            final List<Result> hostResults = e.getValue();
+            cs.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    Connection conn = Connection.createConnection(host,
+                            cookies, filters);
+                    try {
+                        conn.reexecuteAll(hostResults, attributes,
+                                PIPELINE_WINDOW, new ReexecuteHandler() {
+                                    public void reexecuted(Result original,
+                                            Map<String, byte[]> attrs) {
+                                        fetched.put(original, new Result(
+                                                attrs, host));
+                                    }
+                                });
+                    } finally {
+                        conn.close();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        IOException ioe = null;
+        for (int i = 0; i < byHost.size(); i++) {
+            try {
+                cs.take().get();
+            } catch (ExecutionException e) {
+                if (ioe == null) {
+                    ioe = new IOException();
+                    ioe.initCause(e.getCause());
+                }
+            }
+        }
+        if (ioe != null) {
+            throw ioe;
+        }
+
+        List<Result> list = new ArrayList<Result>(winners.size());
+        for (Result r : winners) {
+            Result full = fetched.get(r);
+            if (full != null) {
+                list.add(full);
+            }
+        }
+        return list;
+    }
+}
@@ -338,28 +338,50 @@ public class Util {
      * @return an image, or <code>null</code> if no image can be decoded
      */
     public static BufferedImage extractImageFromResult(Result r) {
+        return extractImageFromResult(r, null);
+    }
+
+    /**
+     * Extracts a BufferedImage from a Result, decoding RGB images into a
+     * raster from a pool.
+     *
+     * @param r
+     *            the result to extract an image from
+     * @param pool
+     *            the pool to take rasters from, or <code>null</code> to
+     *            allocate them
+     * @return an image, or <code>null</code> if no image can be decoded
+     */
+    public static BufferedImage extractImageFromResult(Result r,
+            RGBImagePool pool) {
         // first, try rgbimage
         byte[] rgbimage = r.getValue("_rgb_image.rgbimage");
         if (rgbimage != null) {
-            return decodeRGBImage(rgbimage);
+            return decodeRGBImage(rgbimage, pool);
         }
 
         // then, try ImageIO
         byte[] data = r.getData();
         if (data != null) {
-            InputStream in = new ByteArrayInputStream(data);
-            try {
-                return ImageIO.read(in);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            }
+            return decodeImageData(data);
         }
 
         return null;
     }
 
-    private static BufferedImage decodeRGBImage(byte[] rgbimage) {
+    // Decodes object data in any format ImageIO knows, or returns null
+    static BufferedImage decodeImageData(byte[] data) {
+        InputStream in = new ByteArrayInputStream(data);
+        try {
+            return ImageIO.read(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    static BufferedImage decodeRGBImage(byte[] rgbimage,
+            RGBImagePool pool) {
         ByteBuffer buf = ByteBuffer.wrap(rgbimage);
         buf.order(ByteOrder.LITTLE_ENDIAN);
 
@@ -371,17 +393,21 @@ public class Util {
         int w = buf.getInt();
 
         // do it
-        BufferedImage result = new BufferedImage(w, h,
-                BufferedImage.TYPE_INT_RGB);
+        BufferedImage result;
+        if (pool != null) {
+            result = pool.acquire(w, h);
+        } else {
+            result = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        }
         int data[] = ((DataBufferInt) result.getRaster().getDataBuffer())
                 .getData();
-        for (int i = 0; i < data.length; i++) {
-            byte r = buf.get();
-            byte g = buf.get();
-            byte b = buf.get();
-            buf.get();
+        int pixels = w * h;
 
-            data[i] = ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | (b & 0xFF);
+        // Read each RGBX pixel as one big-endian int, 0xRRGGBBXX, in a
+        // single bulk copy, then shift the padding byte out
+        buf.order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(data, 0, pixels);
+        for (int i = 0; i < pixels; i++) {
+            data[i] >>>= 8;
         }
 
         return result;
@@ -403,15 +429,12 @@ public class Util {
             throws IOException {
         Set<String> desiredAttributes = new HashSet<String>();
 
-        // try to get the decoded image first, then the undecoded image
+        // ask for the decoded and the undecoded image in one reexecution;
+        // the decoded one is used if the server has it
         desiredAttributes.add("_rgb_image.rgbimage");
+        desiredAttributes.add("");
         Result r2 = factory.generateResult(objectIdentifier, desiredAttributes);
 
-        if (r2.getValue("_rgb_image.rgbimage") == null) {
-            desiredAttributes.add("");
-            r2 = factory.generateResult(objectIdentifier, desiredAttributes);
-        }
-
         // decode
         return Util.extractImageFromResult(r2);
     }
@@ -12,44 +12,47 @@
 
 package edu.cmu.cs.diamond.opendiamond;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 class XDR_retrain implements XDREncodeable {
     private final String[] names;
-    private final Integer[] labels;
+    private final int[] labels;
     private final byte[][] features;
 
-    public XDR_retrain(List<String> names, List<Integer> labels, List<byte[]> features) {
-        this.features = features.toArray(new byte[0][0]);
-        this.names = names.toArray(new String[0]);
-        this.labels = labels.toArray(new Integer[0]);
+    public XDR_retrain(String[] names, int[] labels, byte[][] features) {
+        this.names = names;
+        this.labels = labels;
+        this.features = features;
     }
 
     public byte[] encode() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-
-        try {
-            out.writeInt(names.length);
-            for (String name : names) {
-                out.write(XDREncoders.encodeString(name));
-            }
-            out.writeInt(labels.length);
-            for (int label : labels) {
-                out.writeInt(label);
-            }
-            out.writeInt(features.length);
-            for (byte[] feature : features) {
-                out.write(XDREncoders.encodeOpaque(feature));
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        byte[][] encodedNames = new byte[names.length][];
+        int size = 12 + 4 * labels.length;
+        for (int i = 0; i < names.length; i++) {
+            encodedNames[i] = XDREncoders.encodeString(names[i]);
+            size += encodedNames[i].length;
+        }
+        for (byte[] feature : features) {
+            size += 4 + XDRGetter.roundup(feature.length);
         }
 
-        return baos.toByteArray();
+        // a new ByteBuffer is zeroed, which supplies the padding
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(names.length);
+        for (byte[] name : encodedNames) {
+            buf.put(name);
+        }
+        buf.putInt(labels.length);
+        for (int label : labels) {
+            buf.putInt(label);
+        }
+        buf.putInt(features.length);
+        for (byte[] feature : features) {
+            buf.putInt(feature.length);
+            buf.put(feature);
+            buf.position(buf.position() + XDRGetter.roundup(feature.length)
+                    - feature.length);
+        }
+        return buf.array();
     }
 }
-
@@ -12,6 +12,7 @@
 
 package edu.cmu.cs.diamond.opendiamond;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -70,6 +71,12 @@ class XMLLogger extends LoggingFramework {
     private final Object lock = new Object();
 
     XMLLogger(String logMessage) throws IOException {
+        this(logMessage, false);
+    }
+
+    // If buffered is true, log records are not written out until flush()
+    // is called.
+    XMLLogger(String logMessage, boolean buffered) throws IOException {
         synchronized (lock) {
             Date currentDate = new Date();
             SimpleDateFormat sdf = new SimpleDateFormat();
@@ -89,10 +96,18 @@ class XMLLogger extends LoggingFramework {
             searchDir = temp;
 
             String logFileName = Util.joinPaths(searchDir, "raw_log.log");
-            FileHandler fh = new FileHandler(logFileName);
-            javaLogger.addHandler(fh);
             XMLFormatter formatter = new XMLFormatter();
-            fh.setFormatter(formatter);
+            Handler fh;
+            if (buffered) {
+                fh = new StreamHandler(new BufferedOutputStream(
+                        new FileOutputStream(logFileName), 65536),
+                        formatter);
+                fh.setLevel(Level.ALL);
+            } else {
+                fh = new FileHandler(logFileName);
+                fh.setFormatter(formatter);
+            }
+            javaLogger.addHandler(fh);
             javaLogger.setUseParentHandlers(false);
             javaLogger.setLevel(Level.FINEST);
 
@@ -107,6 +122,15 @@ class XMLLogger extends LoggingFramework {
         }
     }
 
+    @Override
+    public void flush() {
+        synchronized (lock) {
+            for (Handler h : javaLogger.getHandlers()) {
+                h.flush();
+            }
+        }
+    }
+
     @Override
     public void shutdown(Throwable cause) {
         synchronized (lock) {
@@ -352,8 +376,8 @@ class XMLLogger extends LoggingFramework {
                     for (String s : result.getKeys()) {
                         if (s != null)
                             array[i] = s;
-                        if (s != null && result.getValue(s) != null)
-                            array[i + 1] = Base64.encodeBytes(result.getValue(s));
+                        if (s != null && result.getUnrecordedValue(s) != null)
+                            array[i + 1] = Base64.encodeBytes(result.getUnrecordedValue(s));
                         i += 2;
                     }
                     if (result.getObjectIdentifier() != null)
@@ -370,6 +394,14 @@ class XMLLogger extends LoggingFramework {
         }
     }
 
+    @Override
+    public void logDroppedResults(long count) {
+        synchronized (lock) {
+            javaLogger.log(Level.FINEST, "Dropped results.",
+                    Long.toString(count));
+        }
+    }
+
     @Override
     public void logNoMoreResults() {
         synchronized (lock) {